@@ -0,0 +1,138 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * One thread that accepts connections and hands them to the worker pool.
+ *
+ * With --acceptors=N the server runs N of these. On systems that support
+ * SO_REUSEPORT (Linux, recent BSDs) each acceptor gets its own listening
+ * socket bound to the same port, and the kernel spreads incoming connections
+ * across those sockets. Otherwise all acceptors share a single ServerSocket,
+ * which still lets several threads wait in accept() at once.
+ */
+final class Acceptor implements Runnable {
+    private final int id;
+    private final ServerSocket serverSocket;
+    private final ServerContext context;
+
+    // Written only by the accepting thread; read by the stats reporter
+    private final AtomicLong accepted = new AtomicLong();
+
+    // Reporter-side state for the accept rate since the previous sample
+    private long lastSampleCount;
+    private long lastSampleNanos = System.nanoTime();
+
+    Acceptor(int id, ServerSocket serverSocket, ServerContext context) {
+        this.id = id;
+        this.serverSocket = serverSocket;
+        this.context = context;
+    }
+
+    /**
+     * Create a listening socket for the port. When several acceptors are
+     * requested and SO_REUSEPORT is available, it is enabled before bind()
+     * so that more sockets can be bound to the same port.
+     * 
+     * The socket is opened through a ServerSocketChannel (in blocking mode),
+     * so every accepted Socket has a SocketChannel behind it. That channel
+     * is what FileChannel.transferTo() needs for zero-copy file sends.
+     */
+    static ServerSocket openServerSocket(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel.socket();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether this platform lets several sockets listen on the same port
+     */
+    static boolean reusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void run() {
+        while (WebServer.isRunning()) {
+            try {
+                // socket.accept() blocks until a client connects
+                // When a client connects, it returns a Socket object representing that connection
+                Socket clientConnection = serverSocket.accept();
+                accepted.lazySet(accepted.get() + 1);
+
+                // Time the hand-off (not the wait) for JFR (see ServerEvents)
+                ServerEvents.Accept event = new ServerEvents.Accept();
+                event.begin();
+
+                // Get client IP for logging
+                String clientIP = clientConnection.getInetAddress().getHostAddress();
+
+                // Create an HttpRequest object to handle this specific request
+                // Pass the client socket to the request handler
+                HttpRequest request = new HttpRequest(clientConnection, clientIP, context);
+
+                // Hand the request to the worker pool
+                // This is crucial because accept() is blocking
+                // If we processed requests sequentially, the server would hang
+                // while one client was being served
+                // The pool never blocks the accept loop: when every worker is
+                // busy and the queue is full, the client gets a fast 503
+                context.workerPool.submit(request);
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.clientAddress = clientIP;
+                    event.commit();
+                }
+
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                if (WebServer.isRunning()) {
+                    System.err.println("Socket error: " + e.getMessage());
+                }
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;  // Closed by a shutdown (see GracefulShutdown)
+                }
+                System.err.println("Accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Total connections accepted by this acceptor since startup */
+    long acceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * Connections per second accepted since the previous call.
+     * Only the stats reporter thread calls this.
+     */
+    double sampleAcceptRate() {
+        long now = System.nanoTime();
+        long count = accepted.get();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        double rate = seconds > 0 ? (count - lastSampleCount) / seconds : 0;
+        lastSampleCount = count;
+        lastSampleNanos = now;
+        return rate;
+    }
+
+    int id() {
+        return id;
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Asynchronous access log: one line per response, written by a background
+ * thread.
+ *
+ * System.out.println() locks the PrintStream and writes to the terminal (or
+ * file) before it returns. With two calls per request, every worker thread
+ * waits in line for that lock under load. Here a worker only puts a small
+ * entry into a ring buffer, which takes a few atomic operations and never a
+ * lock. The writer thread takes out everything that has piled up, formats
+ * it and writes it with one buffered write per batch.
+ *
+ * Ring buffer (bounded multi-producer queue):
+ * - Each slot has a sequence number that says whose turn it is. Slot i of
+ *   lap n is free for the producer of position n*capacity + i, and holds an
+ *   entry for the consumer once its sequence is one higher.
+ * - Producers claim a position with compareAndSet on the tail counter, fill
+ *   the slot, then publish it by advancing its sequence.
+ * - The single consumer never competes with anybody for the head.
+ *
+ * When the buffer is full (the disk cannot keep up) the policy decides:
+ * DROP loses the entry and counts it, so requests are never slowed down by
+ * logging; BLOCK waits for room, so no entry is ever lost.
+ *
+ * Formats:
+ *   common    127.0.0.1 - - [14/Oct/2025:09:30:00 +0000] "GET / HTTP/1.1" 200 7265
+ *   combined  common, plus "Referer" "User-Agent"
+ *   json      {"time":"2025-10-14T09:30:00Z","client":"127.0.0.1","method":"GET",...}
+ */
+final class AccessLog implements Runnable {
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    enum Format { COMMON, COMBINED, JSON }
+
+    enum OverflowPolicy { DROP, BLOCK }
+
+    // Time stamp of the common and combined formats
+    private static final DateTimeFormatter CLF_DATE =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    // How long the writer sleeps when the buffer is empty, and how long a
+    // blocked producer waits before it looks for room again
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static final long FULL_PARK_NANOS = 50_000L;
+
+    // Characters buffered before the writer hands a batch to the stream
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * One logged response. Formatting waits for the writer thread.
+     */
+    private static final class Entry {
+        final long time;
+        final String clientIP;
+        final String requestLine;   // null if the request could not be read
+        final int status;
+        final long bytes;           // Body bytes sent
+        final String referer;
+        final String userAgent;
+
+        Entry(long time, String clientIP, String requestLine, int status, long bytes,
+                String referer, String userAgent) {
+            this.time = time;
+            this.clientIP = clientIP;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytes = bytes;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+    }
+
+    private final Format format;
+    private final OverflowPolicy policy;
+    private final Writer out;
+
+    // The ring buffer; capacity is a power of two so a position maps to its
+    // slot with a mask instead of a division
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();   // Next position to claim
+    private long head;                                  // Next position to read, guarded by drain()
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread writerThread;
+    private volatile boolean closed;
+
+    // The writer formats one time stamp per second, not one per entry
+    private long cachedSecond = -1;
+    private String cachedDate;
+
+    private AccessLog(Format format, OverflowPolicy policy, Writer out, int capacity) {
+        this.format = format;
+        this.policy = policy;
+        this.out = out;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Open the access log the options ask for and start its writer thread
+     *
+     * @return the log, or null when access logging is off
+     * @throws IOException if the log file cannot be opened
+     */
+    static AccessLog start(ServerConfig config) throws IOException {
+        Writer out;
+        if (config.accessLog.equals("off")) {
+            return null;
+        } else if (config.accessLog.equals("stdout")) {
+            out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        } else {
+            out = Files.newBufferedWriter(Paths.get(config.accessLog), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        }
+        AccessLog log = new AccessLog(config.accessLogFormat, config.accessLogPolicy,
+            new BufferedWriter(out, WRITE_BUFFER_SIZE), config.accessLogBufferSize);
+
+        Thread thread = new Thread(log, "access-log");
+        thread.setDaemon(true);
+        log.writerThread = thread;
+        thread.start();
+        return log;
+    }
+
+    /**
+     * Do log lines include the Referer and User-Agent headers? Callers skip
+     * decoding them when not.
+     */
+    boolean wantsHeaders() {
+        return format != Format.COMMON;
+    }
+
+    /**
+     * Log a response. Never blocks with the DROP policy.
+     *
+     * @param requestLine the request line, or null if none could be read
+     * @param bytes body bytes sent
+     */
+    void log(String clientIP, String requestLine, int status, long bytes, String referer, String userAgent) {
+        Entry entry = new Entry(System.currentTimeMillis(), clientIP, requestLine, status, bytes, referer, userAgent);
+        while (!offer(entry)) {
+            if (policy == OverflowPolicy.DROP || closed) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Put an entry into the ring buffer
+     *
+     * @return false if the buffer is full
+     */
+    private boolean offer(Entry entry) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) position & mask;
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                // The slot is free for this position; try to claim it
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;  // The slot still holds an entry from the previous lap
+            } else {
+                position = tail.get();  // Another producer claimed it first
+            }
+        }
+        int slot = (int) position & mask;
+        slots.set(slot, entry);
+        sequences.set(slot, position + 1);  // Publish: the writer may take it now
+        return true;
+    }
+
+    /**
+     * Take the next entry out of the ring buffer (writer thread only)
+     *
+     * @return the entry, or null if the buffer is empty
+     */
+    private Entry poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null;
+        }
+        Entry entry = slots.get(slot);
+        slots.set(slot, null);
+        sequences.set(slot, head + mask + 1);  // Free for the next lap
+        head++;
+        return entry;
+    }
+
+    public void run() {
+        StringBuilder line = new StringBuilder(256);
+        while (!closed) {
+            try {
+                if (!drain(line)) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                System.err.println("[access-log] Write failed: " + e.getMessage());
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Format and write every entry in the buffer as one batch. Synchronized
+     * only because close() may drain the rest from another thread.
+     *
+     * @return false if there was nothing to write
+     */
+    private synchronized boolean drain(StringBuilder line) throws IOException {
+        Entry entry = poll();
+        if (entry == null) {
+            return false;
+        }
+        do {
+            line.setLength(0);
+            format(entry, line);
+            out.append(line);
+            entry = poll();
+        } while (entry != null);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Stop the writer thread and write out the rest of the buffer
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Thread thread = writerThread;
+        if (thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            drain(new StringBuilder(256));
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("[access-log] Write failed: " + e.getMessage());
+        }
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * One-line summary of the counters, used for periodic logging
+     */
+    String describe() {
+        return "log-dropped=" + dropped.get();
+    }
+
+    private void format(Entry entry, StringBuilder line) {
+        if (format == Format.JSON) {
+            formatJson(entry, line);
+            return;
+        }
+        // Common Log Format: host ident authuser [date] "request" status bytes
+        line.append(entry.clientIP).append(" - - [").append(date(entry.time)).append("] \"");
+        appendEscaped(line, entry.requestLine != null ? entry.requestLine : "-");
+        line.append("\" ").append(entry.status).append(' ');
+        if (entry.bytes > 0) {
+            line.append(entry.bytes);
+        } else {
+            line.append('-');
+        }
+        if (format == Format.COMBINED) {
+            line.append(" \"");
+            appendEscaped(line, entry.referer != null ? entry.referer : "-");
+            line.append("\" \"");
+            appendEscaped(line, entry.userAgent != null ? entry.userAgent : "-");
+            line.append('"');
+        }
+        line.append('\n');
+    }
+
+    private static void formatJson(Entry entry, StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.time)).append('"');
+        appendJsonField(line, "client", entry.clientIP);
+        if (entry.requestLine != null) {
+            // "GET /index.html HTTP/1.1" -> method, target, protocol
+            String[] parts = entry.requestLine.split(" ", 3);
+            appendJsonField(line, "method", parts[0]);
+            appendJsonField(line, "target", parts.length > 1 ? parts[1] : null);
+            appendJsonField(line, "protocol", parts.length > 2 ? parts[2] : null);
+        }
+        line.append(",\"status\":").append(entry.status);
+        line.append(",\"bytes\":").append(entry.bytes);
+        appendJsonField(line, "referer", entry.referer);
+        appendJsonField(line, "userAgent", entry.userAgent);
+        line.append("}\n");
+    }
+
+    private static void appendJsonField(StringBuilder line, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        line.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Request lines and headers come from the client: quotes and control
+     * characters are escaped so a line cannot be forged
+     */
+    private static void appendEscaped(StringBuilder line, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                line.append(String.format("\\x%02x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    private String date(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDate = CLF_DATE.format(Instant.ofEpochMilli(millis));
+        }
+        return cachedDate;
+    }
+}
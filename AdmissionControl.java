@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Decides whether the server takes on more work, so that it sheds load
+ * with a cheap 503 instead of slowing down for everyone.
+ *
+ * Two independent checks, both optional:
+ *
+ * In-flight limit (--max-in-flight): at most N requests are processed at
+ * once, across all connections. The worker pool already bounds this in
+ * platform mode; with virtual threads or the nio engine it keeps thousands
+ * of connections from all reading files and building responses at the same
+ * time.
+ *
+ * Queue delay (--queue-target, CoDel-style, off by default): how long
+ * accepted connections wait for a free worker. A queue that briefly fills
+ * during a burst is fine; a queue that never drains (a "standing" queue)
+ * only adds latency. Like CoDel, the check looks at the shortest wait seen
+ * during each interval: if even that is above the target, the queue did
+ * not drain once in the whole interval, and the server is overloaded. An
+ * interval in which no worker took a connection (an idle server) says
+ * nothing and is not judged. While overloaded, connections that waited
+ * longer than twice the target are answered with 503 instead of being
+ * served; as soon as one interval's shortest wait is back under the
+ * target, everything is served again.
+ *
+ * The state is a few atomics updated once per request, so the check costs
+ * next to nothing; races between workers at an interval boundary can only
+ * make the decision lag by one request.
+ */
+final class AdmissionControl {
+    static final int DEFAULT_QUEUE_INTERVAL_MILLIS = 100;
+
+    private final int maxInFlight;          // 0 = no limit
+    private final long targetNanos;         // 0 = no queue delay check
+    private final long intervalNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Queue delay state: the end of the current interval, the shortest wait
+    // seen in it so far, and whether the previous interval was overloaded
+    private final AtomicLong intervalEnd = new AtomicLong();
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean overloaded;
+
+    private final AtomicLong shedInFlight = new AtomicLong();
+    private final AtomicLong shedQueued = new AtomicLong();
+
+    AdmissionControl(ServerConfig config) {
+        this.maxInFlight = config.maxInFlight;
+        this.targetNanos = config.queueTargetMillis * 1_000_000L;
+        this.intervalNanos = config.queueIntervalMillis * 1_000_000L;
+        this.intervalEnd.set(System.nanoTime() + intervalNanos);
+    }
+
+    /**
+     * Start processing a request, unless the in-flight limit is reached.
+     * Every successful call must be matched by one call to exit().
+     */
+    boolean tryEnter() {
+        if (maxInFlight == 0) {
+            inFlight.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                shedInFlight.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A request admitted by tryEnter() is done
+     */
+    void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Whether a connection that waited queuedNanos for a worker should
+     * still be served. Called once per connection, when a worker takes it.
+     */
+    boolean admitQueued(long queuedNanos) {
+        if (targetNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long end = intervalEnd.get();
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + intervalNanos)) {
+            // This worker closes the interval: judge it by its shortest wait,
+            // if it saw any, and start the next one empty
+            long shortest = minDelay.getAndSet(Long.MAX_VALUE);
+            overloaded = shortest != Long.MAX_VALUE && shortest > targetNanos;
+        }
+        minDelay.accumulateAndGet(queuedNanos, Math::min);
+        if (overloaded && queuedNanos > 2 * targetNanos) {
+            shedQueued.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /** Requests being processed right now */
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * One-line summary of the gauges, used for periodic logging
+     */
+    String describe() {
+        return "in-flight=" + inFlight.get() +
+            (overloaded ? " overloaded" : "") +
+            " shed-in-flight=" + shedInFlight.get() +
+            " shed-queued=" + shedQueued.get();
+    }
+}
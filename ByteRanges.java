@@ -0,0 +1,139 @@
+import java.util.*;
+
+/**
+ * The byte ranges of a "Range: bytes=..." request header, resolved against
+ * the length of a file.
+ *
+ * Range Formats (RFC 9110):
+ * bytes=0-499        the first 500 bytes
+ * bytes=500-         everything from byte 500 on
+ * bytes=-500         the last 500 bytes
+ * bytes=0-99,200-299 several ranges: answered as multipart/byteranges
+ *
+ * Clients use ranges to resume an interrupted download or to seek in audio
+ * and video, so only the requested part of a large file is sent.
+ */
+final class ByteRanges {
+    // More ranges than this are ignored and the whole file is sent: a long
+    // list of tiny ranges costs far more to answer than it saves
+    static final int MAX_RANGES = 16;
+
+    private final long[] starts;
+    private final long[] ends;    // Inclusive, as in Content-Range
+    private final int count;
+
+    private ByteRanges(long[] starts, long[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    /**
+     * Parse a Range header for a file of the given length.
+     *
+     * @return the ranges, which may be none at all when no range overlaps the
+     *         file (answer 416); or null when the header must be ignored
+     *         (malformed, not in bytes, too many ranges) and the whole file
+     *         is sent with 200
+     */
+    static ByteRanges parse(String header, long length) {
+        if (header.length() < 6 || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        long[] starts = new long[specs.length];
+        long[] ends = new long[specs.length];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = parseNumber(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;  // Selects nothing
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = parseNumber(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = length - 1;  // Open-ended: to the end of the file
+                    } else {
+                        end = parseNumber(spec.substring(dash + 1));
+                        if (end < start) {
+                            return null;  // Invalid syntax: the whole header is ignored
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < length) {
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+        }
+        return new ByteRanges(starts, ends, count);
+    }
+
+    /**
+     * Only digits; Long.parseLong() alone would also accept a sign
+     */
+    private static long parseNumber(String digits) {
+        if (digits.isEmpty() || digits.charAt(0) == '+' || digits.charAt(0) == '-') {
+            throw new NumberFormatException(digits);
+        }
+        return Long.parseLong(digits);
+    }
+
+    /** false: no range overlaps the file, answer 416 Range Not Satisfiable */
+    boolean isSatisfiable() {
+        return count > 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long start(int i) {
+        return starts[i];
+    }
+
+    /** Last byte of range i (inclusive) */
+    long end(int i) {
+        return ends[i];
+    }
+
+    long length(int i) {
+        return ends[i] - starts[i] + 1;
+    }
+
+    /**
+     * Value of the Content-Range header for range i of a file of the given length
+     */
+    String contentRange(int i, long fileLength) {
+        return "bytes " + starts[i] + "-" + ends[i] + "/" + fileLength;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(",", "bytes=", "");
+        for (int i = 0; i < count; i++) {
+            joiner.add(starts[i] + "-" + ends[i]);
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * On-the-fly compression of text files that have no precompressed sibling.
+ *
+ * HTML, CSS and JavaScript usually shrink to a quarter of their size, which
+ * saves far more time on the network than compressing costs. But compressing
+ * is CPU work, so:
+ * - Each file version is compressed once. ContentCache keeps the result next
+ *   to the original, keyed by the file and its ETag, and every later request
+ *   is served from memory.
+ * - Only listed MIME types are compressed: images, PDFs and archives are
+ *   already compressed and would not get smaller.
+ * - Tiny files are sent as they are: below about 1KB the gzip header and
+ *   the extra work outweigh the few bytes saved.
+ * - A CPU budget caps the share of one core spent compressing. When it is
+ *   used up (a deploy just changed every file), the file is sent
+ *   uncompressed and compressed on a later request instead.
+ *
+ * gzip and deflate are the codings the JDK can write (java.util.zip).
+ */
+final class Compressor {
+    static final int DEFAULT_MIN_SIZE = 1024;
+    static final String DEFAULT_TYPES = "text/html,text/css,text/plain,application/javascript,application/json";
+    static final int DEFAULT_BUDGET_PERCENT = 25;
+
+    // The codings this class can produce, in ContentEncoding preference order
+    static final Set<ContentEncoding> ENCODINGS = Collections.unmodifiableSet(
+        EnumSet.of(ContentEncoding.GZIP, ContentEncoding.DEFLATE));
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final int minSize;
+    private final Set<String> types;
+
+    // CPU budget as a token bucket of nanoseconds: it refills at
+    // budgetPercent of real time and holds at most one second's worth, so a
+    // burst of compressions after a quiet period is allowed but sustained
+    // compression is capped
+    private final long budgetPercent;
+    private long availableNanos;    // guarded by this
+    private long lastRefill;        // guarded by this
+
+    private final AtomicLong compressions = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param minSize files shorter than this are never compressed
+     * @param types the MIME types to compress, empty disables compression
+     * @param budgetPercent share of one core that may be spent compressing,
+     *        0 disables compression
+     */
+    Compressor(int minSize, Set<String> types, int budgetPercent) {
+        this.minSize = minSize;
+        this.types = types;
+        this.budgetPercent = budgetPercent;
+        this.availableNanos = budgetPercent * NANOS_PER_SECOND / 100;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Should a file of this type and length be compressed?
+     */
+    boolean isCompressible(String contentType, long length) {
+        return budgetPercent > 0 && length >= minSize && types.contains(contentType);
+    }
+
+    /**
+     * Compress content with gzip or deflate.
+     *
+     * @return the compressed bytes, or null when the CPU budget is used up
+     *         and the content should be sent uncompressed this time
+     */
+    byte[] compress(byte[] content, ContentEncoding encoding) {
+        if (!tryAcquire()) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (OutputStream out = encoding == ContentEncoding.GZIP
+                ? new GZIPOutputStream(compressed, FileTransfer.COPY_BUFFER_SIZE)
+                : new DeflaterOutputStream(compressed)) {
+            out.write(content);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream never fails
+            throw new UncheckedIOException(e);
+        }
+        charge(System.nanoTime() - start);
+
+        byte[] result = compressed.toByteArray();
+        compressions.incrementAndGet();
+        bytesIn.addAndGet(content.length);
+        bytesOut.addAndGet(result.length);
+        return result;
+    }
+
+    /**
+     * Is any CPU time left? Refills the bucket for the time that passed.
+     */
+    private synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        long capacity = budgetPercent * NANOS_PER_SECOND / 100;
+        availableNanos = Math.min(capacity, availableNanos + (now - lastRefill) * budgetPercent / 100);
+        lastRefill = now;
+        return availableNanos > 0;
+    }
+
+    /**
+     * Take the time one compression took out of the budget. The bucket may
+     * go below zero: the next compressions then wait until it has refilled.
+     */
+    private synchronized void charge(long nanos) {
+        availableNanos -= nanos;
+    }
+
+    /** A request was served from an already compressed variant */
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    /** A request needed a compressed variant that was not cached */
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Compressed size as a fraction of the original, over every compression
+     * so far (0.25 means four times smaller), or 0 before the first one
+     */
+    double compressionRatio() {
+        long in = bytesIn.get();
+        return in == 0 ? 0 : (double) bytesOut.get() / in;
+    }
+
+    /**
+     * Share of compressed responses served from the cache, 0 to 1
+     */
+    double hitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    /**
+     * One-line summary of the counters, used for periodic logging
+     */
+    String describe() {
+        return "compressed=" + compressions.get() +
+            String.format(Locale.ROOT, " ratio=%.2f hit-rate=%.2f", compressionRatio(), hitRate()) +
+            " skipped=" + skipped.get();
+    }
+
+    /**
+     * Parse a comma-separated list of MIME types, like --compress-types
+     */
+    static Set<String> parseTypes(String list) {
+        Set<String> types = new HashSet<>();
+        for (String type : list.split(",")) {
+            type = type.trim().toLowerCase(Locale.ROOT);
+            if (!type.isEmpty()) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The open connections of the blocking engine, and whether each is in the
+ * middle of a request, so a shutdown can tell them apart (see
+ * GracefulShutdown):
+ * - Idle: waiting for the next request on a keep-alive connection. Safe to
+ *   close at any time; the client reconnects elsewhere.
+ * - Busy: a request has been read and its response is being produced. Left
+ *   alone until it is done, or until the drain deadline.
+ *
+ * A connection changes state with a compare-and-set, so a shutdown closing
+ * idle connections can never close one that has just started a request.
+ *
+ * A watchdog thread also goes through them twice a second and closes any
+ * whose client has stopped taking its response: a blocking write has no
+ * timeout, so nothing else would ever free that worker (see
+ * RequestTimeouts).
+ */
+final class ConnectionTracker {
+    private static final int IDLE = 0;
+    private static final int BUSY = 1;
+    private static final int CLOSED = 2;
+
+    // How often the watchdog looks for responses that are not being taken
+    private static final long WATCHDOG_INTERVAL_MILLIS = 500;
+
+    private final Set<Tracked> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Start tracking a connection; call done() when it is closed
+     *
+     * @param deadline the connection's deadline, for the watchdog
+     */
+    Tracked register(Socket socket, RequestTimeouts.Deadline deadline) {
+        Tracked tracked = new Tracked(socket, deadline);
+        connections.add(tracked);
+        return tracked;
+    }
+
+    /** Open connections, idle or busy */
+    int size() {
+        return connections.size();
+    }
+
+    /** Connections in the middle of a request */
+    int busyCount() {
+        int busy = 0;
+        for (Tracked tracked : connections) {
+            if (tracked.state.get() == BUSY) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Close every connection that is waiting for its next request
+     *
+     * @return how many were closed
+     */
+    int closeIdle() {
+        int closed = 0;
+        for (Tracked tracked : connections) {
+            if (tracked.state.compareAndSet(IDLE, CLOSED)) {
+                tracked.closeSocket();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Close every connection, busy or not
+     *
+     * @return how many were in the middle of a request
+     */
+    int closeAll() {
+        int aborted = 0;
+        for (Tracked tracked : connections) {
+            if (tracked.state.getAndSet(CLOSED) == BUSY) {
+                aborted++;
+            }
+            tracked.closeSocket();
+        }
+        return aborted;
+    }
+
+    /**
+     * Close every busy connection whose response is going out slower than
+     * its deadline allows. The worker blocked in the write gets an
+     * exception and finds the connection closed.
+     *
+     * @return how many were closed
+     */
+    int closeSlowSenders(long now) {
+        int closed = 0;
+        for (Tracked tracked : connections) {
+            if (tracked.deadline.isSendExpired(now) && tracked.state.compareAndSet(BUSY, CLOSED)) {
+                tracked.deadline.sendExpired();
+                tracked.closeSocket();
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Start the watchdog thread that calls closeSlowSenders()
+     */
+    void startWatchdog() {
+        Thread watchdog = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(WATCHDOG_INTERVAL_MILLIS);
+                    closeSlowSenders(System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "send-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * One connection's entry
+     */
+    final class Tracked {
+        private final Socket socket;
+        private final RequestTimeouts.Deadline deadline;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+
+        private Tracked(Socket socket, RequestTimeouts.Deadline deadline) {
+            this.socket = socket;
+            this.deadline = deadline;
+        }
+
+        /**
+         * A request has been read
+         *
+         * @return false if the connection was closed by a shutdown meanwhile
+         */
+        boolean startRequest() {
+            return state.compareAndSet(IDLE, BUSY);
+        }
+
+        /**
+         * The response has been produced; back to waiting
+         */
+        void endRequest() {
+            state.compareAndSet(BUSY, IDLE);
+        }
+
+        /** Whether a shutdown or the watchdog closed this connection */
+        boolean isClosed() {
+            return state.get() == CLOSED;
+        }
+
+        /**
+         * Stop tracking: the connection is closed
+         */
+        void done() {
+            connections.remove(this);
+        }
+
+        private void closeSocket() {
+            try {
+                // A worker blocked in transferTo() (sendfile) is not woken by
+                // close(), only by shutting the sending side down
+                if (!socket.isClosed()) {
+                    socket.shutdownOutput();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
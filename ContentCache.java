@@ -0,0 +1,472 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An in-memory cache of the files in ./www, with their response headers.
+ *
+ * Without a cache, every request for index.html does new File(), exists(),
+ * isFile(), length() and reads the whole file from disk again. Hot assets
+ * like index.html and css/style.css are requested over and over, so keeping
+ * their bytes (and the pre-encoded headers that go with them) in memory
+ * lets the server answer without touching the filesystem at all.
+ *
+ * Large files keep only their headers here: their bodies are sent from disk
+ * with zero-copy transferTo(), but the header block is still built once.
+ *
+ * Precompressed siblings (style.css.br, style.css.gz) are cached as
+ * variants of the original file, under the original's key plus the
+ * encoding, so a direct request for style.css.gz stays a separate entry.
+ * Text files without siblings get gzip/deflate variants made by the
+ * Compressor instead, keyed by the file, the encoding and the original's
+ * ETag: each version of a file is compressed once, not once per request.
+ *
+ * Memory is bounded by a total byte budget. When a new entry does not fit,
+ * the least recently used entries are evicted (LRU). A LinkedHashMap in
+ * access order keeps entries sorted from least to most recently used, so
+ * the eldest entry is always the next one to evict.
+ */
+final class ContentCache {
+    // Bodies of larger files are not cached: they are better served with
+    // zero-copy transferTo() than from the Java heap
+    static final long MAX_CACHED_FILE_SIZE = 1024 * 1024;
+
+    // Separates a file's key from the encoding of a variant. File names
+    // cannot contain it, so variant keys never clash with real files.
+    private static final char VARIANT_SEPARATOR = '\0';
+
+    private final long maxBytes;
+    private final byte[] keepAliveHeaders;
+    private final Compressor compressor;
+    private volatile boolean enabled;
+    private long currentBytes;  // guarded by entries
+
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    // Bumped by every invalidation. A load that overlapped an invalidation
+    // may have read the old file content, so its result is not cached.
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes total budget for cached bodies and headers, 0 disables the cache
+     * @param keepAliveHeaders the Connection headers of a response that keeps
+     *        the connection open (see ServerContext.connectionHeaders)
+     * @param compressor compresses text files that have no precompressed sibling
+     */
+    ContentCache(long maxBytes, byte[] keepAliveHeaders, Compressor compressor) {
+        this.maxBytes = maxBytes;
+        this.keepAliveHeaders = keepAliveHeaders;
+        this.compressor = compressor;
+        this.enabled = maxBytes > 0;
+    }
+
+    /**
+     * A file's pre-rendered response headers, and its content when it is
+     * small enough to keep in memory
+     */
+    static final class CachedFile {
+        final Path path;
+        final long length;
+        final String contentType;
+
+        // Encodings this file can also be sent in (always empty for a
+        // variant itself): its precompressed siblings that are at least as
+        // new as it, or the Compressor's codings when it has none
+        final Set<ContentEncoding> encodings;
+        final boolean compressible;     // encodings are made on the fly
+        final boolean varies;           // A variant, or has variants
+
+        // Validators, for conditional requests (see Validators)
+        final String etag;
+        final long lastModified;
+        final String lastModifiedDate;   // As an HTTP-date
+
+        // Complete header blocks (status line to blank line) of the 200 and
+        // 304 responses, one for each way the connection can continue.
+        // Nothing is added per request.
+        final byte[] keepAliveHeaders;
+        final byte[] closeHeaders;
+        final byte[] notModifiedKeepAliveHeaders;
+        final byte[] notModifiedCloseHeaders;
+
+        // null when the file is too large to hold: send it from path instead
+        final byte[] body;
+
+        CachedFile(Path path, long length, String contentType, Set<ContentEncoding> encodings,
+                boolean compressible, boolean varies, String etag, long lastModified, String lastModifiedDate,
+                byte[] keepAliveHeaders, byte[] closeHeaders,
+                byte[] notModifiedKeepAliveHeaders, byte[] notModifiedCloseHeaders, byte[] body) {
+            this.path = path;
+            this.length = length;
+            this.contentType = contentType;
+            this.encodings = encodings;
+            this.compressible = compressible;
+            this.varies = varies;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.lastModifiedDate = lastModifiedDate;
+            this.keepAliveHeaders = keepAliveHeaders;
+            this.closeHeaders = closeHeaders;
+            this.notModifiedKeepAliveHeaders = notModifiedKeepAliveHeaders;
+            this.notModifiedCloseHeaders = notModifiedCloseHeaders;
+            this.body = body;
+        }
+
+        byte[] headers(boolean keepAlive) {
+            return keepAlive ? keepAliveHeaders : closeHeaders;
+        }
+
+        byte[] notModifiedHeaders(boolean keepAlive) {
+            return keepAlive ? notModifiedKeepAliveHeaders : notModifiedCloseHeaders;
+        }
+
+        /**
+         * Add "Vary: Accept-Encoding" to a header block built per request
+         * (206, 416) when the file is also sent in other encodings
+         */
+        HeaderBlock addVary(HeaderBlock block) {
+            return varies ? block.add("Vary", "Accept-Encoding") : block;
+        }
+
+        long size() {
+            return keepAliveHeaders.length + closeHeaders.length +
+                notModifiedKeepAliveHeaders.length + notModifiedCloseHeaders.length +
+                (body != null ? body.length : 0);
+        }
+    }
+
+    /**
+     * Look up a resolved file, loading it into the cache on a miss.
+     *
+     * @return the file's headers (and body, if small), or null if it does not
+     *         exist or cannot be read. With the cache disabled the entry is
+     *         built fresh for every call.
+     */
+    CachedFile get(File file) {
+        return get(keyOf(file.toPath()), file, null);
+    }
+
+    /**
+     * Look up the best representation of a file for a request: a
+     * precompressed sibling or a compressed copy when the client's
+     * Accept-Encoding allows it, otherwise the file itself
+     *
+     * Range requests always get the file itself: a multipart/byteranges
+     * body cannot say which coding its parts were cut from, and byte
+     * offsets then mean the same whatever the client accepts.
+     *
+     * @return as get(File)
+     */
+    CachedFile get(File file, RequestHeaders headers) {
+        CachedFile identity = get(file);
+        if (identity == null || identity.encodings.isEmpty() || headers.contains(HeaderName.RANGE)) {
+            return identity;
+        }
+        ContentEncoding encoding = ContentEncoding.negotiate(headers.get(HeaderName.ACCEPT_ENCODING), identity.encodings);
+        if (encoding == null) {
+            return identity;
+        }
+        String key = keyOf(file.toPath());
+        if (identity.compressible) {
+            return compressed(key, identity, encoding);
+        }
+        CachedFile variant = get(key + VARIANT_SEPARATOR + encoding.token, file, encoding);
+        return variant != null ? variant : identity;
+    }
+
+    /**
+     * The compressed copy of a cached file, compressing it on a miss
+     *
+     * @return the copy, or the file itself when the CPU budget is used up
+     */
+    private CachedFile compressed(String fileKey, CachedFile identity, ContentEncoding encoding) {
+        if (!enabled) {
+            return identity;  // Nowhere to keep the result
+        }
+        // With the ETag in the key, a copy of an older version can never be
+        // served for the current one, even if an invalidation is missed
+        String key = fileKey + VARIANT_SEPARATOR + encoding.token + VARIANT_SEPARATOR + identity.etag;
+        synchronized (entries) {
+            CachedFile cached = entries.get(key);
+            if (cached != null) {
+                compressor.recordHit();
+                return cached;
+            }
+        }
+
+        compressor.recordMiss();
+        long loadGeneration = generation.get();
+        byte[] body = compressor.compress(identity.body, encoding);
+        if (body == null) {
+            return identity;  // Not cached: compressed by a later request
+        }
+        CachedFile variant;
+        if (body.length < identity.length) {
+            variant = entry(identity.path, body.length, identity.contentType, EnumSet.noneOf(ContentEncoding.class),
+                false, variantETag(identity.etag, encoding), identity.lastModified, encoding, body);
+        } else {
+            // Did not get smaller: remember that by caching the original
+            // under the variant's key, so it is not compressed again
+            variant = identity;
+        }
+        store(key, variant, loadGeneration);
+        return variant;
+    }
+
+    /**
+     * The ETag of a compressed copy: the original's plus the coding, since
+     * its bytes differ from the original's ("3f2a..." -> "3f2a...-gzip")
+     */
+    private static String variantETag(String etag, ContentEncoding encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding.token + "\"";
+    }
+
+    private CachedFile get(String key, File file, ContentEncoding encoding) {
+        if (!enabled) {
+            return read(file, encoding);
+        }
+
+        synchronized (entries) {
+            CachedFile cached = entries.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+
+        misses.incrementAndGet();
+        return load(key, file, encoding);
+    }
+
+    /**
+     * Read the file from disk and add it to the cache if it fits
+     */
+    private CachedFile load(String key, File file, ContentEncoding encoding) {
+        long loadGeneration = generation.get();
+        CachedFile loaded = read(file, encoding);
+        if (loaded == null) {
+            return null;
+        }
+        store(key, loaded, loadGeneration);
+        return loaded;
+    }
+
+    /**
+     * Add an entry built since loadGeneration, evicting the least recently
+     * used entries to make room
+     */
+    private void store(String key, CachedFile loaded, long loadGeneration) {
+        if (loaded.size() > maxBytes) {
+            return;  // Serve it, but never let one entry flush the whole cache
+        }
+
+        synchronized (entries) {
+            if (generation.get() != loadGeneration) {
+                return;  // The file may have changed while we read it
+            }
+            CachedFile previous = entries.put(key, loaded);
+            if (previous != null) {
+                currentBytes -= previous.size();
+            }
+            currentBytes += loaded.size();
+
+            // Evict least recently used entries until we are back within budget
+            Iterator<CachedFile> eldest = entries.values().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                CachedFile evicted = eldest.next();
+                if (evicted == loaded) {
+                    break;
+                }
+                eldest.remove();
+                currentBytes -= evicted.size();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Build the entry for a file: read its content if it is small enough,
+     * compute its validators and render its header blocks
+     *
+     * @param encoding null for the file itself, otherwise the precompressed
+     *        sibling to read instead
+     */
+    private CachedFile read(File original, ContentEncoding encoding) {
+        File file = encoding == null ? original : new File(original.getPath() + encoding.suffix);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (encoding != null && file.lastModified() < original.lastModified()) {
+            return null;  // Stale: the original was edited after it was compressed
+        }
+        Set<ContentEncoding> encodings = encoding == null ? freshSiblings(file) : EnumSet.noneOf(ContentEncoding.class);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        byte[] body = null;
+        String etag;
+        try {
+            if (length <= MAX_CACHED_FILE_SIZE && length <= maxBytes) {
+                body = Files.readAllBytes(file.toPath());
+                length = body.length;
+                etag = Validators.strongETag(body);
+            } else if (enabled) {
+                // Hashed once, then kept until the file changes
+                etag = Validators.strongETag(file.toPath());
+            } else {
+                // Without a cache the hash would be computed on every request
+                etag = Validators.weakETag(length, lastModified);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        // A variant has the type of the original: style.css.br is still CSS
+        String contentType = HttpRequest.getContentType(original.getName());
+        boolean compressible = encoding == null && encodings.isEmpty() && body != null
+            && compressor.isCompressible(contentType, length);
+        if (compressible) {
+            encodings = Compressor.ENCODINGS;
+        }
+        return entry(file.toPath(), length, contentType, encodings, compressible, etag, lastModified, encoding, body);
+    }
+
+    /**
+     * Render the header blocks of an entry
+     *
+     * @param encoding the Content-Encoding of body, null if it is not encoded
+     */
+    private CachedFile entry(Path path, long length, String contentType, Set<ContentEncoding> encodings,
+            boolean compressible, String etag, long lastModified, ContentEncoding encoding, byte[] body) {
+        String lastModifiedDate = Validators.formatDate(lastModified);
+
+        HeaderBlock ok = new HeaderBlock("HTTP/1.1 200 OK")
+            .add("Content-Type", contentType)
+            .add("Content-Length", length)
+            .add("Accept-Ranges", "bytes")
+            .add("ETag", etag)
+            .add("Last-Modified", lastModifiedDate);
+        HeaderBlock notModified = new HeaderBlock("HTTP/1.1 304 Not Modified")
+            .add("ETag", etag)
+            .add("Last-Modified", lastModifiedDate);
+        if (encoding != null) {
+            ok.add("Content-Encoding", encoding.token);
+        }
+        boolean varies = encoding != null || !encodings.isEmpty();
+        if (varies) {
+            // The response depends on Accept-Encoding; shared caches must
+            // not hand this version to clients that asked differently
+            ok.add("Vary", "Accept-Encoding");
+            notModified.add("Vary", "Accept-Encoding");
+        }
+        return new CachedFile(path, length, contentType, encodings, compressible, varies,
+            etag, lastModified, lastModifiedDate,
+            ok.encode(keepAliveHeaders), ok.encode(ServerContext.CONNECTION_CLOSE),
+            notModified.encode(keepAliveHeaders), notModified.encode(ServerContext.CONNECTION_CLOSE),
+            body);
+    }
+
+    /**
+     * The precompressed siblings of a file that are at least as new as it
+     */
+    private static Set<ContentEncoding> freshSiblings(File file) {
+        Set<ContentEncoding> encodings = EnumSet.noneOf(ContentEncoding.class);
+        for (ContentEncoding encoding : ContentEncoding.values()) {
+            if (encoding.suffix == null) {
+                continue;
+            }
+            File sibling = new File(file.getPath() + encoding.suffix);
+            if (sibling.isFile() && sibling.lastModified() >= file.lastModified()) {
+                encodings.add(encoding);
+            }
+        }
+        return encodings;
+    }
+
+    /**
+     * Drop the entry for a changed path, its compressed variants, and every
+     * entry below it if the path is a directory. A changed sibling like
+     * style.css.gz also drops style.css, whose entry records which siblings
+     * exist. Called by ContentWatcher, never on the request path.
+     */
+    void invalidate(Path path) {
+        String key = keyOf(path);
+        String directoryPrefix = key + File.separator;
+        String variantPrefix = key + VARIANT_SEPARATOR;
+        ContentEncoding sibling = ContentEncoding.ofSibling(key);
+        String original = sibling != null ? key.substring(0, key.length() - sibling.suffix.length()) : null;
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<Map.Entry<String, CachedFile>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, CachedFile> entry = iterator.next();
+                String entryKey = entry.getKey();
+                if (entryKey.equals(key) || entryKey.startsWith(directoryPrefix) || entryKey.startsWith(variantPrefix)
+                        || original != null && (entryKey.equals(original) || entryKey.startsWith(original + VARIANT_SEPARATOR))) {
+                    currentBytes -= entry.getValue().size();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every entry, when we cannot tell which files changed
+     */
+    void invalidateAll() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+            currentBytes = 0;
+        }
+    }
+
+    /**
+     * Cache key: the normalized path, so "./www/css/style.css" from a request
+     * and "www/css/style.css" from the file watcher name the same entry
+     */
+    static String keyOf(Path path) {
+        return path.normalize().toString();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Stop caching and drop every entry
+     */
+    void disable() {
+        enabled = false;
+        invalidateAll();
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * One-line summary of the counters, used for periodic logging
+     */
+    String describe() {
+        synchronized (entries) {
+            return "cache=" + entries.size() + " files/" + currentBytes + " bytes" +
+                " hits=" + hits.get() +
+                " misses=" + misses.get() +
+                " evictions=" + evictions.get() +
+                " " + compressor.describe();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+
+/**
+ * Content codings the server can send, and the Accept-Encoding negotiation
+ * that picks one.
+ *
+ * Text files compress very well, but compressing them on every request costs
+ * CPU. Instead, compressed copies can be prepared ahead of time next to the
+ * original (www/css/style.css.br, www/css/style.css.gz) and the server sends
+ * the best one the client accepts:
+ *
+ *   Accept-Encoding: gzip, deflate, br       (what the browser accepts)
+ *   Content-Encoding: br                     (what the server sent)
+ *   Vary: Accept-Encoding                    (tells caches the response
+ *                                             depends on that header)
+ *
+ * Text files with no precompressed copy can instead be compressed by the
+ * server itself, once per file version (see Compressor). The JDK can write
+ * gzip and deflate but not Brotli, so "br" only ever comes from a sibling.
+ *
+ * Constants are in order of preference: when the client accepts several
+ * equally, Brotli wins because it compresses better.
+ */
+enum ContentEncoding {
+    BROTLI("br", ".br"),
+    GZIP("gzip", ".gz"),
+    DEFLATE("deflate", null);
+
+    private static final ContentEncoding[] PREFERENCE_ORDER = values();
+
+    final String token;     // As written in Accept-Encoding / Content-Encoding
+    final String suffix;    // File name suffix of the precompressed sibling,
+                            // null if there is no such file convention
+
+    ContentEncoding(String token, String suffix) {
+        this.token = token;
+        this.suffix = suffix;
+    }
+
+    /**
+     * The encoding a precompressed sibling with this file name provides, or
+     * null if the name has no known suffix
+     */
+    static ContentEncoding ofSibling(String fileName) {
+        for (ContentEncoding encoding : PREFERENCE_ORDER) {
+            if (encoding.suffix != null && fileName.endsWith(encoding.suffix)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pick the best of the available encodings for an Accept-Encoding header.
+     *
+     * Each entry may carry a weight, "br;q=0.5"; q=0 means "not acceptable".
+     * "*" stands for every coding not listed by name.
+     *
+     * @return the encoding to send, or null to send the file as it is
+     */
+    static ContentEncoding negotiate(String acceptEncoding, Set<ContentEncoding> available) {
+        if (acceptEncoding == null || available.isEmpty()) {
+            return null;
+        }
+        double wildcard = weight(acceptEncoding, "*");
+        ContentEncoding best = null;
+        double bestWeight = 0;
+        for (ContentEncoding encoding : PREFERENCE_ORDER) {
+            if (!available.contains(encoding)) {
+                continue;
+            }
+            double weight = weight(acceptEncoding, encoding.token);
+            if (weight < 0) {
+                weight = Math.max(wildcard, 0);
+            }
+            if (weight > bestWeight) {
+                best = encoding;
+                bestWeight = weight;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The weight Accept-Encoding gives a coding: 1 unless a q parameter says
+     * otherwise, -1 if the coding is not listed. Scans the header in place.
+     */
+    private static double weight(String header, String coding) {
+        int length = header.length();
+        int i = 0;
+        while (i < length) {
+            // One element: coding *( ";" parameter ) up to the next comma
+            int elementEnd = header.indexOf(',', i);
+            if (elementEnd < 0) {
+                elementEnd = length;
+            }
+            int nameStart = skipSpaces(header, i, elementEnd);
+            int nameEnd = nameStart;
+            while (nameEnd < elementEnd && header.charAt(nameEnd) != ';' && header.charAt(nameEnd) != ' ') {
+                nameEnd++;
+            }
+            if (nameEnd - nameStart == coding.length()
+                    && header.regionMatches(true, nameStart, coding, 0, coding.length())) {
+                return qValue(header, nameEnd, elementEnd);
+            }
+            i = elementEnd + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * The q parameter in header[from..to), or 1 when there is none
+     */
+    private static double qValue(String header, int from, int to) {
+        int semicolon = header.indexOf(';', from);
+        while (semicolon >= 0 && semicolon < to) {
+            int parameter = skipSpaces(header, semicolon + 1, to);
+            if (parameter + 1 < to
+                    && (header.charAt(parameter) == 'q' || header.charAt(parameter) == 'Q')
+                    && header.charAt(parameter + 1) == '=') {
+                int valueEnd = header.indexOf(';', parameter);
+                if (valueEnd < 0 || valueEnd > to) {
+                    valueEnd = to;
+                }
+                try {
+                    return Double.parseDouble(header.substring(parameter + 2, valueEnd).trim());
+                } catch (NumberFormatException e) {
+                    return 0;  // An unreadable weight counts as "not acceptable"
+                }
+            }
+            semicolon = header.indexOf(';', semicolon + 1);
+        }
+        return 1;
+    }
+
+    private static int skipSpaces(String text, int from, int to) {
+        while (from < to && (text.charAt(from) == ' ' || text.charAt(from) == '\t')) {
+            from++;
+        }
+        return from;
+    }
+}
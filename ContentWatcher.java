@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Keeps the content cache fresh by watching ./www for changes.
+ *
+ * Key Concepts Demonstrated:
+ * - WatchService: the operating system tells us when files are created,
+ *   modified or deleted (inotify on Linux), so the request path never has to
+ *   check file timestamps
+ * - A WatchService watches single directories, so every directory of the
+ *   tree is registered, including directories created later
+ *
+ * A changed file is simply dropped from the cache; the next request loads the
+ * new version. On Linux this happens within milliseconds of the change. On
+ * platforms where the JDK polls for changes (macOS) the delay is bounded by
+ * the polling interval, about ten seconds.
+ */
+final class ContentWatcher implements Runnable {
+    private final Path root;
+    private final ContentCache cache;
+    private final WatchService watchService;
+
+    private ContentWatcher(Path root, ContentCache cache) throws IOException {
+        this.root = root;
+        this.cache = cache;
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Start watching the tree below root on a daemon thread
+     */
+    static void start(Path root, ContentCache cache) throws IOException {
+        ContentWatcher watcher = new ContentWatcher(root, cache);
+        watcher.registerTree(root);
+        Thread thread = new Thread(watcher, "content-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // Too many changes at once and some events were lost
+                    cache.invalidateAll();
+                    System.out.println("[cache] Too many changes in " + root + ", cache cleared");
+                    continue;
+                }
+
+                Path changed = directory.resolve((Path) event.context());
+                cache.invalidate(changed);
+                System.out.println("[cache] Changed: " + changed);
+
+                // A new directory has to be registered to see changes inside it
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        registerTree(changed);
+                    } catch (IOException e) {
+                        System.err.println("[cache] Cannot watch " + changed + ": " + e.getMessage());
+                    }
+                }
+            }
+            key.reset();  // Needed to receive further events for this directory
+        }
+    }
+
+    /**
+     * Register a directory and every directory below it
+     */
+    private void registerTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
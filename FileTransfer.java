@@ -0,0 +1,68 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Moves file content onto a connection.
+ *
+ * Two ways to send a file:
+ * - Copy: read a chunk of the file into a byte[] on the Java heap, then write
+ *   that chunk to the socket. Every byte is copied kernel -> heap -> kernel,
+ *   with a read() and a write() system call per chunk.
+ * - Zero-copy: FileChannel.transferTo() asks the operating system to move the
+ *   bytes from the file straight to the socket (sendfile() on Linux). The data
+ *   never enters the Java heap and large files need only a few system calls.
+ *
+ * Zero-copy needs a SocketChannel. Sockets accepted through a ServerSocketChannel
+ * have one; other sockets fall back to copying with a large buffer.
+ */
+final class FileTransfer {
+    // Chunk size for the copying fallback
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Below this size a file is cheaper to copy into the response buffer (and
+    // send together with the headers) than to send with a separate sendfile()
+    static final long ZERO_COPY_THRESHOLD = 64 * 1024;
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Send count bytes of the file, starting at position, with transferTo().
+     * The target must be in blocking mode; this returns once everything is sent.
+     *
+     * @throws EOFException if the file became shorter while it was being sent
+     */
+    static void transfer(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long sent = file.transferTo(position, count, target);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("File truncated while sending");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    /**
+     * Send count bytes of the file, starting at position, through a heap buffer.
+     * Positional reads leave the file channel's own position untouched.
+     *
+     * @throws EOFException if the file became shorter while it was being sent
+     */
+    static void copy(FileChannel file, long position, long count, OutputStream target) throws IOException {
+        byte[] chunk = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1))];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(chunk.length, count));
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File truncated while sending");
+            }
+            target.write(chunk, 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+}
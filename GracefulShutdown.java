@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Stops the server without dropping requests it has already taken on, run
+ * as a JVM shutdown hook (Ctrl+C, or SIGTERM from a deploy) or from
+ * WebServer.shutdown().
+ *
+ * 1. Stop accepting: close the listening sockets. This also wakes the
+ *    acceptor threads from accept().
+ * 2. Close idle keep-alive connections. Their clients simply reconnect,
+ *    to another instance during a rolling restart.
+ * 3. Let requests in progress finish, including connections already
+ *    waiting in the worker queue, for up to --drain-timeout seconds. Their
+ *    responses say "Connection: close", since the server is no longer
+ *    running.
+ * 4. When the time is up, cut off what is left: queued connections get the
+ *    pre-encoded 503 with Retry-After, busy ones are closed.
+ * 5. Report what happened, then write out the rest of the access log.
+ */
+final class GracefulShutdown implements Runnable {
+    static final int DEFAULT_DRAIN_TIMEOUT = 10;
+
+    private final ServerContext context;
+    private final List<ServerSocket> serverSockets;  // Blocking engine
+    private final NioServer nioServer;               // nio engine
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private GracefulShutdown(ServerContext context, List<ServerSocket> serverSockets, NioServer nioServer) {
+        this.context = context;
+        this.serverSockets = serverSockets;
+        this.nioServer = nioServer;
+    }
+
+    /**
+     * Drain the blocking engine at JVM shutdown
+     */
+    static GracefulShutdown install(ServerContext context, List<ServerSocket> serverSockets) {
+        return install(new GracefulShutdown(context, serverSockets, null));
+    }
+
+    /**
+     * Drain the nio engine at JVM shutdown
+     */
+    static GracefulShutdown install(ServerContext context, NioServer nioServer) {
+        return install(new GracefulShutdown(context, null, nioServer));
+    }
+
+    private static GracefulShutdown install(GracefulShutdown shutdown) {
+        Runtime.getRuntime().addShutdownHook(new Thread(shutdown, "shutdown"));
+        return shutdown;
+    }
+
+    /**
+     * Drain and stop; only the first call does anything
+     */
+    public void run() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        WebServer.stopRunning();
+        long start = System.nanoTime();
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(context.config.drainTimeoutSeconds);
+        try {
+            String summary = nioServer != null ? drainNio(timeoutNanos) : drainBlocking(start + timeoutNanos);
+            System.out.println("WebServer stopped in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) +
+                "ms: " + summary);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            context.stop();
+        }
+    }
+
+    private String drainBlocking(long deadline) throws InterruptedException {
+        // Step 1: Stop accepting
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing ServerSocket: " + e.getMessage());
+            }
+        }
+        WorkerPool workerPool = context.workerPool;
+        ConnectionTracker connections = context.connections;
+        int busy = connections.busyCount();
+        int queued = workerPool.queueLength();
+        System.out.println("Shutting down: " + busy + " requests in progress, " + queued +
+            " connections queued, waiting up to " + context.config.drainTimeoutSeconds + "s");
+
+        // Steps 2 and 3: Close idle connections and wait for the rest. A busy
+        // connection turns idle when its response is done and then closes by
+        // itself; keep closing idle ones in case one went back to waiting
+        // just before the server stopped running.
+        workerPool.shutdown();
+        int idleClosed = 0;
+        boolean finished;
+        do {
+            idleClosed += connections.closeIdle();
+            long remaining = deadline - System.nanoTime();
+            finished = workerPool.awaitTermination(Math.max(0, Math.min(remaining, 100_000_000L)),
+                TimeUnit.NANOSECONDS);
+        } while (!finished && deadline - System.nanoTime() > 0);
+
+        // Step 4: Out of time
+        int rejected = 0;
+        int aborted = 0;
+        if (!finished) {
+            // Count and close the busy connections before interrupting their
+            // workers, which would close them too
+            aborted = connections.closeAll();
+            for (HttpRequest request : workerPool.shutdownNow()) {
+                request.sendServiceUnavailable();
+                rejected++;
+            }
+        }
+        return idleClosed + " idle connections closed, " + rejected + " queued connections rejected, " +
+            aborted + " requests aborted";
+    }
+
+    private String drainNio(long timeoutNanos) throws InterruptedException {
+        int open = nioServer.openConnections();
+        System.out.println("Shutting down: " + open + " connections open, waiting up to " +
+            context.config.drainTimeoutSeconds + "s");
+        int aborted = nioServer.drain(timeoutNanos);
+        return nioServer.closedIdleCount() + " idle connections closed, " + aborted + " responses aborted";
+    }
+}
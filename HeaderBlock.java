@@ -0,0 +1,42 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds the header block of an HTTP response:
+ *
+ *   HTTP/1.1 200 OK\r\n
+ *   Content-Type: text/html\r\n
+ *   Content-Length: 1234\r\n
+ *   Connection: keep-alive\r\n
+ *   \r\n
+ *
+ * Static files get their header block built once and reused for every
+ * request (see ContentCache), so the request path does no string building
+ * or character encoding. Only responses that depend on the request build a
+ * block each time.
+ */
+final class HeaderBlock {
+    private final StringBuilder text = new StringBuilder(160);
+
+    HeaderBlock(String statusLine) {
+        text.append(statusLine).append(HttpRequest.CRLF);
+    }
+
+    HeaderBlock add(String name, Object value) {
+        text.append(name).append(": ").append(value).append(HttpRequest.CRLF);
+        return this;
+    }
+
+    /**
+     * Encode the block, finished with the connection headers and the blank
+     * line that separates the headers from the body
+     */
+    byte[] encode(byte[] connectionHeaders) {
+        byte[] start = text.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] block = new byte[start.length + connectionHeaders.length + 2];
+        System.arraycopy(start, 0, block, 0, start.length);
+        System.arraycopy(connectionHeaders, 0, block, start.length, connectionHeaders.length);
+        block[block.length - 2] = '\r';
+        block[block.length - 1] = '\n';
+        return block;
+    }
+}
@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The request headers this server acts on (or logs).
+ *
+ * While parsing, each header name is compared byte by byte against this
+ * short list, ignoring case, so a well-known header gets its constant ID
+ * without creating a String. Handlers then ask for headers by ID instead of
+ * comparing names again.
+ */
+enum HeaderName {
+    HOST("Host"),
+    CONNECTION("Connection"),
+    CONTENT_LENGTH("Content-Length"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
+    IF_NONE_MATCH("If-None-Match"),
+    IF_MODIFIED_SINCE("If-Modified-Since"),
+    RANGE("Range"),
+    IF_RANGE("If-Range"),
+    ACCEPT_ENCODING("Accept-Encoding"),
+    REFERER("Referer"),
+    USER_AGENT("User-Agent");
+
+    final String text;
+    private final byte[] lowerCase;
+
+    // Candidates grouped by name length: most names are ruled out by their
+    // length alone, before any byte is compared
+    private static final HeaderName[][] BY_LENGTH;
+    static {
+        int longest = 0;
+        for (HeaderName name : values()) {
+            longest = Math.max(longest, name.lowerCase.length);
+        }
+        List<List<HeaderName>> groups = new ArrayList<>();
+        for (int i = 0; i <= longest; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (HeaderName name : values()) {
+            groups.get(name.lowerCase.length).add(name);
+        }
+        BY_LENGTH = new HeaderName[longest + 1][];
+        for (int i = 0; i <= longest; i++) {
+            BY_LENGTH[i] = groups.get(i).toArray(new HeaderName[0]);
+        }
+    }
+
+    HeaderName(String text) {
+        this.text = text;
+        this.lowerCase = text.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The well-known header named by data[start..end), ignoring case, or
+     * null if the server does not know it
+     */
+    static HeaderName lookup(byte[] data, int start, int end) {
+        int length = end - start;
+        if (length >= BY_LENGTH.length) {
+            return null;
+        }
+        candidates:
+        for (HeaderName candidate : BY_LENGTH[length]) {
+            byte[] expected = candidate.lowerCase;
+            for (int i = 0; i < length; i++) {
+                if (RequestParser.toLowerCase(data[start + i]) != expected[i]) {
+                    continue candidates;
+                }
+            }
+            return candidate;
+        }
+        return null;
+    }
+}
@@ -1,18 +1,24 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Handles a single HTTP request in a separate thread.
+ * Handles the HTTP requests of one client connection in a separate thread.
  * 
  * Key Socket Concepts Demonstrated:
  * - Socket Input/Output Streams: Used to read HTTP request and send HTTP response
- * - Buffered Reading: Efficient reading of HTTP headers line by line
- * - DataOutputStream: Allows writing different data types to the output stream
- * - Proper HTTP Protocol: Follows HTTP/1.0 response format
+ * - Byte-level parsing: RequestParser reads the request head into a reused
+ *   buffer and parses it without decoding every line into a String
+ * - ResponseWriter: Queues pre-encoded headers and bodies and sends them
+ *   with gathering writes
+ * - Proper HTTP Protocol: Follows HTTP/1.1 response format, including
+ *   persistent (keep-alive) connections and pipelined requests
  * 
  * HTTP Response Format:
- * Status Line: HTTP/1.0 200 OK
+ * Status Line: HTTP/1.1 200 OK
  * Headers: Content-Type: text/html
  *          Content-Length: 1234
  * Blank Line: (CRLF only)
@@ -21,10 +27,109 @@ import java.util.*;
 final class HttpRequest implements Runnable {
     // HTTP uses CRLF (Carriage Return Line Feed) as line separator
     final static String CRLF = "\r\n";
-    final static int BUFFER_SIZE = 1024;
+    
+    // Every file is served from this directory
+    final static String WWW_ROOT = "./www";
+    private final static Path WWW_ROOT_PATH = Paths.get(WWW_ROOT).normalize();
+    
+    // Body of the 404 Not Found response
+    final static String NOT_FOUND_BODY = "<HTML>" +
+        "<HEAD><TITLE>404 Not Found</TITLE></HEAD>" +
+        "<BODY>" +
+        "<H1>404 Not Found</H1>" +
+        "<P>The requested resource was not found on this server.</P>" +
+        "</BODY>" +
+        "</HTML>";
+    
+    // Pre-encoded response used when the server is too busy to take the request.
+    // Building it once keeps the rejection path (which runs on the accept thread)
+    // down to a single write. Retry-After asks well-behaved clients to back off.
+    final static byte[] SERVICE_UNAVAILABLE = (
+        "HTTP/1.1 503 Service Unavailable" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Retry-After: 1" + CRLF +
+        "Content-Length: 20" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Server is too busy" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    
+    // Pre-encoded response for clients over their rate limit (see RateLimiter).
+    // The connection is closed, so a flooding client has to reconnect first.
+    final static byte[] TOO_MANY_REQUESTS = (
+        "HTTP/1.1 429 Too Many Requests" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Retry-After: 1" + CRLF +
+        "Content-Length: 19" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Too Many Requests" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    
+    // Pre-encoded response for request heads larger than --max-header-size
+    final static byte[] HEADER_TOO_LARGE = (
+        "HTTP/1.1 431 Request Header Fields Too Large" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Content-Length: 33" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Request Header Fields Too Large" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    
+    // Pre-encoded response for requests the parser cannot make sense of.
+    // The connection is closed afterwards: we cannot tell where the next
+    // request would start.
+    final static byte[] BAD_REQUEST = (
+        "HTTP/1.1 400 Bad Request" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Content-Length: 13" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Bad Request" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    
+    // Pre-encoded responses for methods other than GET and HEAD: 405 for the
+    // methods HTTP defines, 501 for ones we do not know. Such a request may
+    // carry a body we never read, so the connection is closed afterwards.
+    final static byte[] METHOD_NOT_ALLOWED = (
+        "HTTP/1.1 405 Method Not Allowed" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Allow: GET, HEAD" + CRLF +
+        "Content-Length: 20" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Method Not Allowed" + CRLF).getBytes(StandardCharsets.US_ASCII);
+
+    final static byte[] NOT_IMPLEMENTED = (
+        "HTTP/1.1 501 Not Implemented" + CRLF +
+        "Content-Type: text/plain" + CRLF +
+        "Content-Length: 17" + CRLF +
+        "Connection: close" + CRLF +
+        CRLF +
+        "Not Implemented" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    
+    // File extension -> MIME type, looked up once per file (see getContentType)
+    private final static Map<String, String> CONTENT_TYPES = new HashMap<>();
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("gz", "application/gzip");
+    }
     
     private Socket socket;
     private String clientIP;
+    private ServerContext context;
+    private ServerConfig config;
+    private String target;  // Path of the request being answered, for JFR events
+    private boolean headOnly;  // Answering HEAD: the headers of a GET, no body
+    private final long acceptedNanos = System.nanoTime();  // For the queue delay
+    private ConnectionTracker.Tracked tracked;  // Idle or busy, for a graceful shutdown
     
     /**
      * Constructor - receives the client socket from the server
@@ -33,9 +138,11 @@ final class HttpRequest implements Runnable {
      * - Read the HTTP request from the client (InputStream)
      * - Write the HTTP response back to the client (OutputStream)
      */
-    public HttpRequest(Socket socket, String clientIP) {
+    public HttpRequest(Socket socket, String clientIP, ServerContext context) {
         this.socket = socket;
         this.clientIP = clientIP;
+        this.context = context;
+        this.config = context.config;
     }
     
     /**
@@ -47,15 +154,46 @@ final class HttpRequest implements Runnable {
      * Worker threads -> process requests independently
      */
     public void run() {
+        // Shed load when connections have been waiting too long for a worker
+        // (see AdmissionControl); serving them late would only make it worse
+        if (!context.admission.admitQueued(System.nanoTime() - acceptedNanos)) {
+            sendServiceUnavailable();
+            return;
+        }
         try {
             processRequest();
         } catch (Exception e) {
+            if (tracked != null && tracked.isClosed()) {
+                return;  // Closed by a shutdown or for a slow client (see ConnectionTracker), not an error
+            }
+            context.metrics.recordError();
             System.err.println("[" + clientIP + "] Error processing request: " + e.getMessage());
         }
     }
 
     /**
-     * Parse the HTTP request and send an appropriate response
+     * Reject this connection with "503 Service Unavailable" without reading
+     * the request. Called when the worker pool has no room for it, or when
+     * it waited too long in the queue.
+     */
+    void sendServiceUnavailable() {
+        try {
+            socket.getOutputStream().write(SERVICE_UNAVAILABLE);
+        } catch (IOException e) {
+            // The client is gone already; nothing more to do
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("[" + clientIP + "] Error closing socket: " + e.getMessage());
+            }
+        }
+        context.metrics.recordError();
+        context.logAccess(clientIP, null, 503, 0, null);
+    }
+
+    /**
+     * Serve the requests that arrive on this connection
      * 
      * HTTP Request Format:
      * GET /index.html HTTP/1.1
@@ -64,61 +202,197 @@ final class HttpRequest implements Runnable {
      * ... (more headers)
      * (blank line)
      * 
-     * We only need to parse the request line and determine the filename.
+     * With HTTP/1.1 persistent connections (keep-alive), a browser sends the
+     * page, its CSS and its JavaScript one after another over the same TCP
+     * connection, saving a TCP handshake per file. The connection is closed
+     * when the client asks for it ("Connection: close"), when it stays idle
+     * longer than the keep-alive timeout, or after the maximum number of
+     * requests per connection.
      */
     private void processRequest() throws Exception {
         // Use try-with-resources to ensure streams are properly closed
         // even if an exception occurs
+        // Responses are batched in our own buffer, so disable Nagle's algorithm:
+        // it would only hold back the last segment of each batch
+        socket.setTcpNoDelay(true);
+        
+        // Whether the request being answered holds an in-flight slot
+        boolean admitted = false;
+        // Limits the wait for each request head, and the time the client
+        // takes to accept each response (see RequestTimeouts). Between
+        // requests the wait also ends once other connections are queued
+        // for a worker: an idle client must not keep them waiting.
+        RequestTimeouts.Deadline deadline = context.timeouts.newDeadline(
+            () -> context.workerPool.queueLength() > 0);
+        tracked = context.connections.register(socket, deadline);
         try (
             InputStream inputStream = socket.getInputStream();
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-            BufferedReader requestReader = new BufferedReader(new InputStreamReader(inputStream))
+            ResponseWriter responseWriter = new ResponseWriter(socket, deadline)
         ) {
-            // Step 1: Read the HTTP request line
-            // Format: GET /filename HTTP/1.1
-            String requestLine = requestReader.readLine();
-            
-            if (requestLine == null) {
-                return;  // Client disconnected without sending a request
-            }
-            
-            // Step 2: Parse the request line to extract the filename
-            StringTokenizer tokens = new StringTokenizer(requestLine);
-            String method = tokens.nextToken();       // Should be "GET"
-            String fileName = tokens.nextToken();     // The requested file path
-            String httpVersion = tokens.nextToken();  // Should be "HTTP/1.1" or "HTTP/1.0"
+            // Reused for every request on this connection
+            RequestParser parser = new RequestParser(config.maxHeaderSize);
+            int requestCount = 0;
+            boolean keepAlive = true;
             
-            // Log the request
-            System.out.println("[" + clientIP + "] " + requestLine);
-            
-            // Step 3: Read HTTP headers (and discard them for this simple server)
-            // Headers end with a blank line (just CRLF)
-            String headerLine;
-            while ((headerLine = requestReader.readLine()) != null && !headerLine.isEmpty()) {
-                // In a real server, you would parse these headers (Host, User-Agent, etc.)
-                // For this simple example, we just consume them
-            }
-            
-            // Step 4: Map the request to a file
-            // Map requests to the www directory
-            // This is a security measure to prevent directory traversal attacks
-            if (fileName.equals("/")) {
-                fileName = "/index.html";  // Default file
-            }
-            fileName = "./www" + fileName;
-            
-            // Step 5: Try to open the requested file
-            File file = new File(fileName);
-            boolean fileExists = file.exists() && file.isFile();
-            
-            // Step 6: Construct and send the HTTP response
-            if (fileExists) {
-                sendSuccessResponse(outputStream, file);
-            } else {
-                sendErrorResponse(outputStream);
+            while (keepAlive) {
+                // Step 1: Read the request head: the request line and the headers,
+                // up to the blank line (just CRLF) that ends them
+                // Format: GET /filename HTTP/1.1
+                // Each read waits at most until the deadline: the keep-alive
+                // timeout while idle, then the header timeout and minimum rate
+                try {
+                    if (!parser.readRequest(inputStream, socket, deadline)) {
+                        return;  // Client disconnected without sending a request
+                    }
+                } catch (SocketTimeoutException e) {
+                    return;  // Idle too long, or too slow sending the request: just close
+                } catch (RequestParser.HeaderTooLargeException e) {
+                    sendHeaderTooLarge(responseWriter);
+                    return;
+                } catch (ProtocolException e) {
+                    sendBadRequest(responseWriter);
+                    return;
+                }
+                if (!tracked.startRequest()) {
+                    return;  // The server is shutting down and closed this idle connection
+                }
+                requestCount++;
+
+                // Only GET and HEAD are served
+                RequestParser.Method method = parser.method();
+                if (method != RequestParser.Method.GET && method != RequestParser.Method.HEAD) {
+                    sendMethodRefused(responseWriter, method, parser.requestLine());
+                    return;
+                }
+                headOnly = method == RequestParser.Method.HEAD;
+
+                // This client has used up its share (see RateLimiter)
+                if (!context.rateLimiter.tryAcquire(clientIP)) {
+                    sendTooManyRequests(responseWriter, parser.requestLine());
+                    return;
+                }
+                
+                // Too many requests in progress already: a cheap 503 now is
+                // better than a slow answer for everyone (see AdmissionControl)
+                if (!context.admission.tryEnter()) {
+                    sendServiceUnavailable(responseWriter, parser.requestLine());
+                    return;
+                }
+                admitted = true;
+                
+                // Timings for the metrics start now that the request is in
+                long requestStart = System.nanoTime();
+                responseWriter.startResponse();
+                
+                // Step 2: The parser has split the request line already:
+                // method (should be GET), file path, HTTP version
+                String fileName = parser.target();
+                target = fileName;
+                
+                // Step 3: Look at the headers
+                // Well-known headers (Connection, Range, ...) were recognized
+                // while parsing; their values are decoded only when asked for
+                RequestHeaders headers = parser.headers();
+                
+                // Step 4: Decide whether the connection stays open after this response
+                // An idle keep-alive connection occupies this thread, so give the
+                // thread up when other connections are already waiting for one.
+                // A request body is never read, so after a request that has one
+                // the connection is closed: its bytes must not be taken for the
+                // next request.
+                keepAlive = config.keepAliveTimeoutSeconds > 0
+                    && requestCount < config.maxKeepAliveRequests
+                    && WebServer.isRunning()
+                    && context.workerPool.queueLength() == 0
+                    && wantsKeepAlive(parser.version(), headers)
+                    && !hasBody(headers);
+                
+                int status;
+                long bodyBytes;
+                String contentType;
+                if (fileName.equals(Metrics.PATH)) {
+                    // The server's own counters and latency percentiles, in the
+                    // Prometheus text format (see Metrics)
+                    status = 200;
+                    contentType = "text/plain";
+                    bodyBytes = sendMetrics(responseWriter, keepAlive);
+                } else {
+                    // Step 5: Map the request to a file in the www directory
+                    // Step 6: Look the file up in the content cache. Hot files come
+                    // back with their body in memory; every file comes back with its
+                    // response headers already rendered. If the client accepts a
+                    // precompressed sibling (style.css.br, style.css.gz), that is
+                    // what comes back instead.
+                    ContentCache.CachedFile resource = findResource(context, fileName, headers);
+                    if (resource == null) {
+                        status = 404;
+                        bodyBytes = sendErrorResponse(responseWriter, keepAlive);
+                    } else if (Validators.notModified(headers, resource.etag, resource.lastModified)) {
+                        // Step 7: The client's copy is still current: no body needed
+                        status = 304;
+                        bodyBytes = sendNotModifiedResponse(responseWriter, resource, keepAlive);
+                    } else {
+                        // Step 8: The file exists; send all of it, or the ranges asked for
+                        ByteRanges ranges = requestedRanges(headers, resource);
+                        if (ranges == null) {
+                            status = 200;
+                            bodyBytes = sendSuccessResponse(responseWriter, resource, keepAlive);
+                        } else if (ranges.isSatisfiable()) {
+                            status = 206;
+                            bodyBytes = sendPartialResponse(responseWriter, resource, ranges, keepAlive);
+                        } else {
+                            status = 416;
+                            bodyBytes = sendRangeNotSatisfiable(responseWriter, resource, keepAlive);
+                        }
+                    }
+                    contentType = resource != null ? resource.contentType : "text/html";
+                }
+                if (headOnly) {
+                    bodyBytes = 0;  // Content-Length still describes the GET body
+                }
+
+                // Step 9: Log the request and its response. This only hands an
+                // entry to the access log's writer thread (see AccessLog).
+                context.logAccess(clientIP, parser.requestLine(), status, bodyBytes, headers);
+                
+                // Pipelining: a client may send several requests without waiting
+                // for the responses. If the next request has already arrived, it
+                // is answered right away and its response is queued behind this
+                // one, so a whole batch goes out in as few socket writes as
+                // possible. Responses are produced one after another, so they
+                // are always sent in the order the requests arrived.
+                // Otherwise push the buffered responses onto the network before
+                // waiting for the next request.
+                if (!keepAlive || !(parser.hasBufferedInput() || inputStream.available() > 0)) {
+                    ServerEvents.BodyTransfer transfer = new ServerEvents.BodyTransfer();
+                    transfer.begin();
+                    long flushed = responseWriter.queuedBytes();
+                    responseWriter.flush();
+                    transfer.end();
+                    if (flushed > 0 && transfer.shouldCommit()) {
+                        transfer.path = fileName;
+                        transfer.bytes = flushed;
+                        transfer.commit();
+                    }
+                }
+                
+                // Step 10: Record how long this response took (see Metrics)
+                long requestEnd = System.nanoTime();
+                context.metrics.record(status, contentType, bodyBytes,
+                    responseWriter.firstWriteNanos(requestEnd) - requestStart, requestEnd - requestStart);
+                context.admission.exit();
+                admitted = false;
+                if (keepAlive) {
+                    tracked.endRequest();  // Waiting for the next request from here on
+                }
+
             }
             
         } finally {
+            if (admitted) {
+                context.admission.exit();
+            }
+            tracked.done();
             // The try-with-resources statement automatically closes all resources,
             // but we also explicitly close the socket
             try {
@@ -129,84 +403,345 @@ final class HttpRequest implements Runnable {
         }
     }
 
+    /**
+     * Does the client want the connection to stay open?
+     * 
+     * - HTTP/1.1: persistent by default, unless it sends "Connection: close"
+     * - HTTP/1.0: closed by default, unless it sends "Connection: keep-alive"
+     */
+    static boolean wantsKeepAlive(RequestParser.Version httpVersion, RequestHeaders headers) {
+        if (httpVersion == RequestParser.Version.HTTP_1_1) {
+            return !headers.hasToken(HeaderName.CONNECTION, "close");
+        }
+        return headers.hasToken(HeaderName.CONNECTION, "keep-alive");
+    }
+
+    /**
+     * Does a body follow the request head? Only "Content-Length: 0" (or no
+     * length at all) says there is none.
+     */
+    static boolean hasBody(RequestHeaders headers) {
+        String contentLength = headers.get(HeaderName.CONTENT_LENGTH);
+        return headers.contains(HeaderName.TRANSFER_ENCODING)
+            || contentLength != null && !contentLength.equals("0");
+    }
+
     /**
      * Send a successful HTTP 200 response with the requested file
      * 
      * HTTP Response Format:
-     * Status Line: HTTP/1.0 200 OK\r\n
+     * Status Line: HTTP/1.1 200 OK\r\n
      * Headers: Content-Type: text/html\r\n
      *          Content-Length: 1234\r\n
+     *          Connection: keep-alive\r\n
      * Blank Line: \r\n
      * Body: (file content)
+     * 
+     * The whole header block was rendered when the file entered the cache,
+     * so here it is only queued, together with the body when that is in
+     * memory. Both then leave in one gathering write.
+     * 
+     * @return the number of body bytes sent, as for every send method
      */
-    private void sendSuccessResponse(DataOutputStream outputStream, File file) throws IOException {
-        long fileSize = file.length();
-        String contentType = getContentType(file.getName());
-        
-        // Send status line
-        outputStream.writeBytes("HTTP/1.0 200 OK" + CRLF);
-        
-        // Send response headers
-        outputStream.writeBytes("Content-Type: " + contentType + CRLF);
-        outputStream.writeBytes("Content-Length: " + fileSize + CRLF);
-        
-        // Blank line indicates end of headers
-        outputStream.writeBytes(CRLF);
-        
-        // Send the file content
-        sendFileBytes(file, outputStream);
-        
-        System.out.println("[" + clientIP + "] Sent: 200 OK (" + fileSize + " bytes)");
+    private long sendSuccessResponse(ResponseWriter responseWriter, ContentCache.CachedFile resource,
+            boolean keepAlive) throws IOException {
+        writeHeaders(responseWriter, resource.headers(keepAlive));
+        writeBody(responseWriter, resource, 0, resource.length);
+        return resource.length;
+    }
+
+    /**
+     * The ranges to send, or null to send the whole file: when there is no
+     * Range header, it cannot be used, or If-Range says the client's copy
+     * is of another version
+     */
+    static ByteRanges requestedRanges(RequestHeaders headers, ContentCache.CachedFile resource) {
+        String range = headers.get(HeaderName.RANGE);
+        if (range == null || !Validators.ifRangeMatches(headers, resource.etag, resource.lastModified)) {
+            return null;
+        }
+        return ByteRanges.parse(range, resource.length);
+    }
+
+    /**
+     * Send "206 Partial Content" with the requested ranges of the file
+     * 
+     * One range: the body is just that part of the file, and Content-Range
+     * says which part it is.
+     * Several ranges: the body is multipart/byteranges, each part with its
+     * own Content-Type and Content-Range headers:
+     * 
+     *   --BOUNDARY
+     *   Content-Type: video/mp4
+     *   Content-Range: bytes 0-99/5000
+     *   (blank line)
+     *   (100 bytes)
+     *   --BOUNDARY
+     *   ...
+     *   --BOUNDARY--
+     * 
+     * Range bodies start at their offset (positional transferTo() or a slice
+     * of the cached array); nothing before them is read and thrown away.
+     */
+    private long sendPartialResponse(ResponseWriter responseWriter, ContentCache.CachedFile resource,
+            ByteRanges ranges, boolean keepAlive) throws IOException {
+        if (ranges.count() == 1) {
+            writeHeaders(responseWriter, singleRangeHeaders(resource, ranges)
+                .encode(context.connectionHeaders(keepAlive)));
+            writeBody(responseWriter, resource, ranges.start(0), ranges.length(0));
+            return ranges.length(0);
+        } else {
+            // The whole multipart body is known up front, so its length is too
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            String[] partHeaders = new String[ranges.count()];
+            long contentLength = 0;
+            for (int i = 0; i < ranges.count(); i++) {
+                partHeaders[i] = CRLF + "--" + boundary + CRLF +
+                    "Content-Type: " + resource.contentType + CRLF +
+                    "Content-Range: " + ranges.contentRange(i, resource.length) + CRLF +
+                    CRLF;
+                contentLength += partHeaders[i].length() + ranges.length(i);
+            }
+            String closingBoundary = CRLF + "--" + boundary + "--" + CRLF;
+            contentLength += closingBoundary.length();
+
+            writeHeaders(responseWriter, resource.addVary(new HeaderBlock("HTTP/1.1 206 Partial Content")
+                .add("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .add("Content-Length", contentLength)
+                .add("Accept-Ranges", "bytes")
+                .add("ETag", resource.etag)
+                .add("Last-Modified", resource.lastModifiedDate))
+                .encode(context.connectionHeaders(keepAlive)));
+            if (!headOnly) {
+                for (int i = 0; i < ranges.count(); i++) {
+                    responseWriter.writeAscii(partHeaders[i]);
+                    writeBody(responseWriter, resource, ranges.start(i), ranges.length(i));
+                }
+                responseWriter.writeAscii(closingBoundary);
+            }
+            return contentLength;
+        }
+    }
+
+    /**
+     * Send "416 Range Not Satisfiable": none of the requested ranges overlaps
+     * the file. Content-Range tells the client the actual length.
+     */
+    private long sendRangeNotSatisfiable(ResponseWriter responseWriter, ContentCache.CachedFile resource,
+            boolean keepAlive) throws IOException {
+        writeHeaders(responseWriter, rangeNotSatisfiableHeaders(resource)
+            .encode(context.connectionHeaders(keepAlive)));
+        return 0;
+    }
+
+    /**
+     * Headers of a 206 response with the single range in ranges. Ranges are
+     * only cut from the unencoded file (see ContentCache.get(File,
+     * RequestHeaders)), so there is never a Content-Encoding.
+     */
+    static HeaderBlock singleRangeHeaders(ContentCache.CachedFile resource, ByteRanges ranges) {
+        return resource.addVary(new HeaderBlock("HTTP/1.1 206 Partial Content")
+            .add("Content-Type", resource.contentType)
+            .add("Content-Length", ranges.length(0))
+            .add("Content-Range", ranges.contentRange(0, resource.length))
+            .add("Accept-Ranges", "bytes")
+            .add("ETag", resource.etag)
+            .add("Last-Modified", resource.lastModifiedDate));
+    }
+
+    static HeaderBlock rangeNotSatisfiableHeaders(ContentCache.CachedFile resource) {
+        return resource.addVary(new HeaderBlock("HTTP/1.1 416 Range Not Satisfiable")
+            .add("Content-Length", 0)
+            .add("Content-Range", "bytes */" + resource.length));
+    }
+
+    /**
+     * Queue count bytes of the file, starting at position: a slice of the
+     * cached body, or straight from disk (with zero-copy transferTo() for
+     * large files when possible). Nothing for HEAD.
+     */
+    private void writeBody(ResponseWriter responseWriter, ContentCache.CachedFile resource,
+            long position, long count) throws IOException {
+        if (headOnly) {
+            return;
+        }
+        if (resource.body != null) {
+            responseWriter.write(resource.body, (int) position, (int) count);
+        } else {
+            ServerEvents.BodyTransfer event = new ServerEvents.BodyTransfer();
+            event.begin();
+            responseWriter.writeFile(resource.path, position, count);
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = target;
+                event.bytes = count;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Queue a response header block
+     */
+    private void writeHeaders(ResponseWriter responseWriter, byte[] headerBlock) throws IOException {
+        ServerEvents.HeaderWrite event = new ServerEvents.HeaderWrite();
+        event.begin();
+        responseWriter.write(headerBlock);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = target;
+            event.bytes = headerBlock.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Send "304 Not Modified": the client already has this version of the
+     * file (its ETag or date matched), so only the validators are sent again
+     */
+    private long sendNotModifiedResponse(ResponseWriter responseWriter, ContentCache.CachedFile resource,
+            boolean keepAlive) throws IOException {
+        writeHeaders(responseWriter, resource.notModifiedHeaders(keepAlive));
+        return 0;
+    }
+
+    /**
+     * Answer a request that was read but not admitted with the pre-encoded
+     * 503, behind any pipelined responses still queued, and close
+     */
+    private void sendServiceUnavailable(ResponseWriter responseWriter, String requestLine) throws IOException {
+        responseWriter.write(SERVICE_UNAVAILABLE);
+        responseWriter.flush();
+        context.metrics.recordError();
+        context.logAccess(clientIP, requestLine, 503, 0, null);
+    }
+
+    /**
+     * Answer a method other than GET and HEAD with the pre-encoded 405 (or
+     * 501 for a method HTTP does not define), and close
+     */
+    private void sendMethodRefused(ResponseWriter responseWriter, RequestParser.Method method,
+            String requestLine) throws IOException {
+        int status = method == RequestParser.Method.OTHER ? 501 : 405;
+        responseWriter.write(status == 501 ? NOT_IMPLEMENTED : METHOD_NOT_ALLOWED);
+        responseWriter.flush();
+        context.logAccess(clientIP, requestLine, status, 0, null);
+    }
+
+    /**
+     * Answer a request from a client over its rate limit with the
+     * pre-encoded 429, behind any pipelined responses still queued, and close
+     */
+    private void sendTooManyRequests(ResponseWriter responseWriter, String requestLine) throws IOException {
+        responseWriter.write(TOO_MANY_REQUESTS);
+        responseWriter.flush();
+        context.logAccess(clientIP, requestLine, 429, 0, null);
+    }
+
+    /**
+     * Answer a request head that did not fit in the parser's buffer with the
+     * pre-encoded 431, and close
+     */
+    private void sendHeaderTooLarge(ResponseWriter responseWriter) throws IOException {
+        context.timeouts.recordTooLarge();
+        responseWriter.write(HEADER_TOO_LARGE);
+        responseWriter.flush();
+        context.metrics.recordError();
+        context.logAccess(clientIP, null, 431, 0, null);
+    }
+
+    /**
+     * Answer a malformed request with "400 Bad Request". Responses to earlier
+     * pipelined requests are already queued and go out first. Like every
+     * other response it is recorded in the access log and the metrics only:
+     * printing each one would serialize the workers on stderr.
+     */
+    private void sendBadRequest(ResponseWriter responseWriter) throws IOException {
+        responseWriter.write(BAD_REQUEST);
+        responseWriter.flush();
+        context.metrics.recordError();
+        context.logAccess(clientIP, null, 400, 0, null);
+    }
+
+    /**
+     * Send the metrics page. It is built fresh for every request and must
+     * never be cached by the client or a proxy.
+     */
+    private long sendMetrics(ResponseWriter responseWriter, boolean keepAlive) throws IOException {
+        byte[] body = context.metrics.render().getBytes(StandardCharsets.UTF_8);
+        writeHeaders(responseWriter, new HeaderBlock("HTTP/1.1 200 OK")
+            .add("Content-Type", Metrics.CONTENT_TYPE)
+            .add("Content-Length", body.length)
+            .add("Cache-Control", "no-store")
+            .encode(context.connectionHeaders(keepAlive)));
+        if (!headOnly) {
+            responseWriter.write(body);
+        }
+        return body.length;
     }
 
     /**
      * Send an HTTP 404 Not Found error response
      */
-    private void sendErrorResponse(DataOutputStream outputStream) throws IOException {
-        String errorBody = "<HTML>" +
-            "<HEAD><TITLE>404 Not Found</TITLE></HEAD>" +
-            "<BODY>" +
-            "<H1>404 Not Found</H1>" +
-            "<P>The requested resource was not found on this server.</P>" +
-            "</BODY>" +
-            "</HTML>";
-        
-        // Send status line
-        outputStream.writeBytes("HTTP/1.0 404 Not Found" + CRLF);
-        
-        // Send response headers
-        outputStream.writeBytes("Content-Type: text/html" + CRLF);
-        outputStream.writeBytes("Content-Length: " + errorBody.length() + CRLF);
+    private long sendErrorResponse(ResponseWriter responseWriter, boolean keepAlive) throws IOException {
+        String errorBody = NOT_FOUND_BODY;
         
-        // Blank line indicates end of headers
-        outputStream.writeBytes(CRLF);
+        // Status line and response headers, then the blank line
+        writeHeaders(responseWriter, new HeaderBlock("HTTP/1.1 404 Not Found")
+            .add("Content-Type", "text/html")
+            .add("Content-Length", errorBody.length())
+            .encode(context.connectionHeaders(keepAlive)));
         
         // Send error message as body
-        outputStream.writeBytes(errorBody);
-        
-        System.out.println("[" + clientIP + "] Sent: 404 Not Found");
+        if (!headOnly) {
+            responseWriter.writeAscii(errorBody);
+        }
+        return errorBody.length();
+    }
+
+    /**
+     * Map a request path to a file and look it up in the content cache
+     *
+     * @return as ContentCache.get(File, RequestHeaders)
+     */
+    static ContentCache.CachedFile findResource(ServerContext context, String fileName, RequestHeaders headers) {
+        ServerEvents.FileLookup event = new ServerEvents.FileLookup();
+        event.begin();
+        File file = resolveFile(fileName);
+        ContentCache.CachedFile resource = file != null ? context.contentCache.get(file, headers) : null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = fileName;
+            event.found = resource != null;
+            event.bytes = resource != null ? resource.length : 0;
+            event.commit();
+        }
+        return resource;
     }
 
     /**
-     * Read a file and send its bytes to the client via the socket's output stream
+     * Map a request path to a file in the www directory
      * 
-     * This demonstrates efficient file reading:
-     * - Use a buffer (1KB) to read chunks of the file
-     * - Send each chunk over the network
-     * - Repeat until entire file is sent
+     * Requests are only ever answered from ./www, never from elsewhere on disk.
+     * "/" is served as the default page, index.html.
      * 
-     * This approach is memory-efficient and works for files of any size.
+     * @return the file, or null if the path leads out of ./www (like
+     *         "/../WebServer.java"): such a request is answered with 404 and
+     *         never reaches the content cache
      */
-    private void sendFileBytes(File file, OutputStream outputStream) throws IOException {
-        try (FileInputStream fileStream = new FileInputStream(file)) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
-            
-            // Read from file and write to output stream in chunks
-            while ((bytesRead = fileStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    static File resolveFile(String fileName) {
+        if (fileName.equals("/")) {
+            fileName = "/index.html";  // Default file
+        }
+        File file = new File(WWW_ROOT + fileName);
+        try {
+            if (!file.toPath().normalize().startsWith(WWW_ROOT_PATH)) {
+                return null;
             }
+        } catch (InvalidPathException e) {
+            return null;  // Characters the file system does not allow
         }
+        return file;
     }
 
     /**
@@ -218,39 +753,17 @@ final class HttpRequest implements Runnable {
      * - image/png: Display as PNG image
      * - text/css: Treat as CSS stylesheet
      * - application/octet-stream: Generic binary file (download)
+     * 
+     * The extension is looked up in a map, so the cost does not grow with the
+     * number of known types.
      */
-    private static String getContentType(String fileName) {
-        fileName = fileName.toLowerCase();
-        
-        if (fileName.endsWith(".html") || fileName.endsWith(".htm")) {
-            return "text/html";
-        }
-        if (fileName.endsWith(".css")) {
-            return "text/css";
-        }
-        if (fileName.endsWith(".js")) {
-            return "application/javascript";
-        }
-        if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
-            return "image/jpeg";
-        }
-        if (fileName.endsWith(".png")) {
-            return "image/png";
-        }
-        if (fileName.endsWith(".gif")) {
-            return "image/gif";
-        }
-        if (fileName.endsWith(".ico")) {
-            return "image/x-icon";
-        }
-        if (fileName.endsWith(".txt")) {
-            return "text/plain";
-        }
-        if (fileName.endsWith(".pdf")) {
-            return "application/pdf";
-        }
-        if (fileName.endsWith(".json")) {
-            return "application/json";
+    static String getContentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0) {
+            String contentType = CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (contentType != null) {
+                return contentType;
+            }
         }
         
         // Default to generic binary type
@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of durations in nanoseconds, updated without locks.
+ *
+ * Averages hide what users notice: one slow request in a hundred. Keeping
+ * every duration would cost memory per request, so durations are counted in
+ * buckets instead, and percentiles (p50, p99, p99.9) are read from the
+ * bucket counts.
+ *
+ * Buckets are log-linear: every power of two is split into 8 equal
+ * sub-buckets, so a duration is known to within 1/8 of its size whether it
+ * is 3 microseconds or 3 seconds, with under 500 buckets for the whole range
+ * of a long.
+ *
+ * Recording is one atomic increment of a bucket plus the count and sum, so
+ * worker threads never wait for each other. Histograms with the same
+ * buckets can be added up (merged), e.g. all status codes into one total.
+ */
+final class LatencyHistogram {
+    // Sub-buckets per power of two, as a power of two itself
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Count one duration; negative durations count as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Count the same duration several times
+     */
+    private void record(long nanos, long times) {
+        long value = Math.max(0, nanos);
+        counts.addAndGet(bucketOf(value), times);
+        count.addAndGet(times);
+        sum.addAndGet(value * times);
+    }
+
+    /**
+     * Add another histogram's counts to this one. Both may be updated
+     * meanwhile; every recorded value is counted once either way.
+     */
+    void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount != 0) {
+                counts.addAndGet(i, bucketCount);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+    }
+
+    /**
+     * A copy corrected for coordinated omission, for a client that meant to
+     * send one request every expectedIntervalNanos.
+     *
+     * A client that waits for each response before sending the next request
+     * sends nothing while the server stalls, so a 1 second stall shows up as
+     * one slow request instead of the many that a steady stream of users
+     * would have seen. For every duration longer than the interval, this
+     * adds the requests that should have been sent meanwhile, each waiting
+     * one interval less than the one before (as HdrHistogram does).
+     */
+    LatencyHistogram correctedForCoordinatedOmission(long expectedIntervalNanos) {
+        LatencyHistogram corrected = new LatencyHistogram();
+        corrected.merge(this);
+        if (expectedIntervalNanos <= 0) {
+            return corrected;
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            if (bucketCount == 0) {
+                continue;
+            }
+            long value = (lowerBound(i) + upperBound(i)) / 2;
+            for (long missed = value - expectedIntervalNanos; missed >= expectedIntervalNanos;
+                    missed -= expectedIntervalNanos) {
+                corrected.record(missed, bucketCount);
+            }
+        }
+        return corrected;
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    /** Sum of all recorded durations in nanoseconds */
+    long sum() {
+        return sum.get();
+    }
+
+    /**
+     * The duration below which the given fraction of all durations fall,
+     * e.g. 0.99 for p99; the middle of its bucket, or 0 if nothing was
+     * recorded
+     */
+    long percentile(double fraction) {
+        // Count from the bucket counts, not count(): a record() in progress
+        // may have bumped one but not yet the other
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return (lowerBound(i) + upperBound(i)) / 2;
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each; above that, the highest
+     * set bit picks the power of two and the next SUB_BUCKET_BITS bits the
+     * sub-bucket
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << shift;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        return lowerBound(bucket) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,209 @@
+import java.util.*;
+
+/**
+ * Options for the bundled load generator.
+ *
+ * Command line format:
+ *   java LoadGenerator <port> [--option=value ...]
+ *
+ * Like the server, the port comes first and everything else is optional,
+ * so "java LoadGenerator 5555" runs a 30 second closed-loop test against a
+ * server on the same machine.
+ */
+final class LoadConfig {
+    static final int DEFAULT_CONNECTIONS = 16;
+    static final int DEFAULT_RATE = 1000;
+    static final int DEFAULT_DURATION = 30;
+    static final int DEFAULT_WARMUP = 5;
+    static final int DEFAULT_TIMEOUT = 10;
+
+    // The pages shipped in www/, plus the style sheet and script they load
+    static final List<String> DEFAULT_PATHS = Collections.unmodifiableList(Arrays.asList(
+        "/index.html",
+        "/pages/about.html",
+        "/pages/socket-info.html",
+        "/pages/examples.html",
+        "/css/style.css",
+        "/js/main.js"));
+
+    /**
+     * Closed loop: each connection sends its next request as soon as the
+     * previous response arrives. Open loop: requests are due at a fixed
+     * rate, whether or not earlier ones have been answered.
+     */
+    enum Mode { CLOSED, OPEN }
+
+    String host = "localhost";
+    int port;
+
+    Mode mode = Mode.CLOSED;
+
+    // Client connections (one thread each), and in open loop the total
+    // request rate they share
+    int connections = DEFAULT_CONNECTIONS;
+    int rate = DEFAULT_RATE;
+
+    // Seconds measured, after seconds of warm-up that are not
+    int durationSeconds = DEFAULT_DURATION;
+    int warmupSeconds = DEFAULT_WARMUP;
+
+    // Reuse connections (HTTP/1.1 keep-alive) or open one per request
+    boolean keepAlive = true;
+
+    // Requested in turn by every connection
+    List<String> paths = DEFAULT_PATHS;
+
+    // Seconds to wait for a connection or a response before counting an error
+    int timeoutSeconds = DEFAULT_TIMEOUT;
+
+    // Where to write the JSON report: "-" for stdout, or a file name
+    String report = "-";
+
+    /**
+     * Parse the command line arguments.
+     *
+     * @throws IllegalArgumentException with a user-facing message when an
+     *         argument is missing or invalid
+     */
+    static LoadConfig parse(String[] argv) {
+        if (argv.length == 0) {
+            throw new IllegalArgumentException("Missing port number");
+        }
+
+        LoadConfig config = new LoadConfig();
+        config.port = parseInt("port number", argv[0]);
+        if (config.port < 1 || config.port > 65535) {
+            throw new IllegalArgumentException("Port must be between 1 and 65535");
+        }
+
+        for (int i = 1; i < argv.length; i++) {
+            String arg = argv[i];
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "host":
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("--host needs a host name or address");
+                    }
+                    config.host = value;
+                    break;
+                case "mode":
+                    config.mode = parseMode(value);
+                    break;
+                case "connections":
+                    config.connections = parsePositive(name, value);
+                    break;
+                case "rate":
+                    config.rate = parsePositive(name, value);
+                    break;
+                case "duration":
+                    config.durationSeconds = parsePositive(name, value);
+                    break;
+                case "warmup":
+                    config.warmupSeconds = parseNonNegative(name, value);
+                    break;
+                case "keep-alive":
+                    config.keepAlive = parseOnOff(name, value);
+                    break;
+                case "paths":
+                    config.paths = parsePaths(value);
+                    break;
+                case "timeout":
+                    config.timeoutSeconds = parsePositive(name, value);
+                    break;
+                case "report":
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("--report needs - or a file name");
+                    }
+                    config.report = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Print the usage message, including every supported option
+     */
+    static void printUsage() {
+        System.err.println("Usage: java LoadGenerator <port> [options]");
+        System.err.println("Example: java LoadGenerator 5555 --mode=open --rate=2000 --report=run.json");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("  --host=HOST          Server to load (default localhost)");
+        System.err.println("  --mode=MODE          closed (fixed concurrency) or open (fixed rate, default closed)");
+        System.err.println("  --connections=N      Client connections, one thread each (default " + DEFAULT_CONNECTIONS + ")");
+        System.err.println("  --rate=N             Requests per second in open mode (default " + DEFAULT_RATE + ")");
+        System.err.println("  --duration=S         Seconds measured (default " + DEFAULT_DURATION + ")");
+        System.err.println("  --warmup=S           Seconds of load before measuring (default " + DEFAULT_WARMUP + ")");
+        System.err.println("  --keep-alive=on|off  Reuse connections or open one per request (default on)");
+        System.err.println("  --paths=LIST         Comma-separated paths requested in turn (default the www/ pages)");
+        System.err.println("  --timeout=S          Connect and read timeout (default " + DEFAULT_TIMEOUT + ")");
+        System.err.println("  --report=DEST        - (stdout) or a file for the JSON report (default -)");
+    }
+
+    private static Mode parseMode(String value) {
+        switch (value) {
+            case "closed":
+                return Mode.CLOSED;
+            case "open":
+                return Mode.OPEN;
+            default:
+                throw new IllegalArgumentException("--mode must be closed or open: " + value);
+        }
+    }
+
+    private static boolean parseOnOff(String name, String value) {
+        switch (value) {
+            case "on":
+                return true;
+            case "off":
+                return false;
+            default:
+                throw new IllegalArgumentException("--" + name + " must be on or off: " + value);
+        }
+    }
+
+    private static List<String> parsePaths(String value) {
+        List<String> paths = new ArrayList<>();
+        for (String path : value.split(",")) {
+            path = path.trim();
+            if (!path.startsWith("/")) {
+                throw new IllegalArgumentException("--paths entries must start with /: " + path);
+            }
+            paths.add(path);
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static int parsePositive(String name, String value) {
+        int number = parseInt("--" + name, value);
+        if (number < 1) {
+            throw new IllegalArgumentException("--" + name + " must be at least 1");
+        }
+        return number;
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        int number = parseInt("--" + name, value);
+        if (number < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative");
+        }
+        return number;
+    }
+}
@@ -0,0 +1,395 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A load generator for the web server, so it can be load-tested on one
+ * machine without outside tools (see LoadConfig for the options).
+ *
+ * Two ways to generate load:
+ * - Closed loop: a fixed number of connections, each sending its next
+ *   request as soon as the previous response arrives. This finds the
+ *   throughput limit, but the clients slow down with the server.
+ * - Open loop: requests are due at a fixed rate, and each is timed from when
+ *   it was due, not from when a connection got round to sending it. Time
+ *   spent waiting behind a slow response therefore counts, as it would for
+ *   real users arriving independently.
+ *
+ * Coordinated omission: a closed-loop client sends nothing while the server
+ * stalls, so the stall is measured once instead of once per request that
+ * should have been sent. Open loop avoids this by design; for closed loop
+ * the report adds a corrected histogram that fills in the missing requests,
+ * assuming one request per median response time per connection.
+ *
+ * The report is JSON with one value per line and a fixed key order, so the
+ * reports of two builds can be compared with diff.
+ */
+public final class LoadGenerator {
+    private static final String CRLF = "\r\n";
+
+    private final LoadConfig config;
+    private final InetSocketAddress address;
+    private final byte[][] requests;
+
+    // Service time: from sending the request to the end of the response
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    // Open loop only: from when the request was due to the end of the response
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+
+    // Measured requests only, i.e. those started after the warm-up
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+    // Open loop: the sequence number of the next request due, and how many
+    // were sent over 1ms late because every connection was busy
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final LongAdder lateStarts = new LongAdder();
+
+    private long startNanos;
+    private long measureNanos;
+    private long endNanos;
+
+    private LoadGenerator(LoadConfig config) {
+        this.config = config;
+        this.address = new InetSocketAddress(config.host, config.port);
+        this.requests = new byte[config.paths.size()][];
+        String hostHeader = config.host + ":" + config.port;
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = ("GET " + config.paths.get(i) + " HTTP/1.1" + CRLF +
+                "Host: " + hostHeader + CRLF +
+                "User-Agent: LoadGenerator" + CRLF +
+                "Connection: " + (config.keepAlive ? "keep-alive" : "close") + CRLF +
+                CRLF).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public static void main(String argv[]) throws Exception {
+        LoadConfig config = null;
+        try {
+            config = LoadConfig.parse(argv);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            LoadConfig.printUsage();
+            System.exit(1);
+        }
+
+        LoadGenerator generator = new LoadGenerator(config);
+        if (generator.address.isUnresolved()) {
+            System.err.println("Error: Unknown host " + config.host);
+            System.exit(1);
+        }
+        System.err.println("Loading " + config.host + ":" + config.port + " for " +
+            config.warmupSeconds + "s warm-up + " + config.durationSeconds + "s, " +
+            config.mode.name().toLowerCase() + " loop, " + config.connections + " connections" +
+            (config.mode == LoadConfig.Mode.OPEN ? ", " + config.rate + " requests/s" : "") +
+            (config.keepAlive ? ", keep-alive" : ", no keep-alive"));
+        generator.run();
+
+        String report = generator.report();
+        if (config.report.equals("-")) {
+            System.out.print(report);
+        } else {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(config.report), StandardCharsets.UTF_8)) {
+                out.write(report);
+            }
+            System.err.println("Report written to " + config.report);
+        }
+    }
+
+    /**
+     * Run all connections until the measured period is over
+     */
+    private void run() throws InterruptedException {
+        startNanos = System.nanoTime();
+        measureNanos = startNanos + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+        endNanos = measureNanos + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+        Thread[] clients = new Thread[config.connections];
+        for (int i = 0; i < clients.length; i++) {
+            int first = i;
+            clients[i] = new Thread(() -> runClient(first), "load-client-" + i);
+            clients[i].setDaemon(true);
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+    }
+
+    /**
+     * One connection's loop. Clients start at different paths so all paths
+     * are requested from the first moment.
+     */
+    private void runClient(int first) {
+        Connection connection = null;
+        long requestCount = first;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.rate;
+        try {
+            while (true) {
+                long dueNanos;
+                if (config.mode == LoadConfig.Mode.OPEN) {
+                    dueNanos = startNanos + nextRequest.getAndIncrement() * intervalNanos;
+                    if (dueNanos >= endNanos) {
+                        return;
+                    }
+                    long wait;
+                    while ((wait = dueNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    dueNanos = System.nanoTime();
+                    if (dueNanos >= endNanos) {
+                        return;
+                    }
+                }
+
+                byte[] request = requests[(int) (requestCount++ % requests.length)];
+                long sentNanos = System.nanoTime();
+                boolean measured = dueNanos >= measureNanos;
+                try {
+                    if (connection == null) {
+                        connection = new Connection(address, config.timeoutSeconds);
+                        if (measured) {
+                            connects.increment();
+                        }
+                    }
+                    Response response = connection.exchange(request);
+                    long doneNanos = System.nanoTime();
+                    if (!config.keepAlive || !response.keepAlive) {
+                        connection.close();
+                        connection = null;
+                    }
+                    if (measured) {
+                        serviceTime.record(doneNanos - sentNanos);
+                        responseTime.record(doneNanos - dueNanos);
+                        if (sentNanos - dueNanos > TimeUnit.MILLISECONDS.toNanos(1)) {
+                            lateStarts.increment();
+                        }
+                        completed.increment();
+                        bytesReceived.add(response.bytes);
+                        statusCounts.computeIfAbsent(response.status, status -> new LongAdder()).increment();
+                    }
+                } catch (IOException e) {
+                    if (measured) {
+                        errors.increment();
+                    }
+                    if (connection != null) {
+                        connection.close();
+                        connection = null;
+                    }
+                }
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * The JSON report: settings, counts, and latency percentiles in milliseconds
+     */
+    private String report() {
+        double seconds = config.durationSeconds;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        field(json, "target", quote("http://" + config.host + ":" + config.port));
+        field(json, "mode", quote(config.mode.name().toLowerCase()));
+        field(json, "connections", config.connections);
+        field(json, "rate", config.mode == LoadConfig.Mode.OPEN ? String.valueOf(config.rate) : "null");
+        field(json, "keep_alive", config.keepAlive);
+        field(json, "duration_seconds", config.durationSeconds);
+        field(json, "warmup_seconds", config.warmupSeconds);
+        StringJoiner paths = new StringJoiner(", ", "[", "]");
+        for (String path : config.paths) {
+            paths.add(quote(path));
+        }
+        field(json, "paths", paths);
+        field(json, "requests", completed.sum());
+        field(json, "errors", errors.sum());
+        field(json, "connects", connects.sum());
+        field(json, "bytes", bytesReceived.sum());
+        field(json, "requests_per_second", decimal(completed.sum() / seconds));
+        field(json, "late_starts", config.mode == LoadConfig.Mode.OPEN ? String.valueOf(lateStarts.sum()) : "null");
+
+        json.append("  \"status\": {");
+        StringJoiner statuses = new StringJoiner(",\n", "\n", "\n  ");
+        statuses.setEmptyValue("");
+        for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(statusCounts).entrySet()) {
+            statuses.add("    \"" + status.getKey() + "\": " + status.getValue().sum());
+        }
+        json.append(statuses).append("},\n");
+
+        latency(json, "service_time_ms", serviceTime);
+        LatencyHistogram corrected;
+        if (config.mode == LoadConfig.Mode.OPEN) {
+            corrected = responseTime;
+        } else {
+            corrected = serviceTime.correctedForCoordinatedOmission(serviceTime.percentile(0.5));
+        }
+        json.append(",\n");
+        latency(json, "corrected_latency_ms", corrected);
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static void field(StringBuilder json, String name, Object value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void latency(StringBuilder json, String name, LatencyHistogram histogram) {
+        long count = histogram.count();
+        json.append("  \"").append(name).append("\": {\n")
+            .append("    \"count\": ").append(count).append(",\n")
+            .append("    \"mean\": ").append(millis(count == 0 ? 0 : histogram.sum() / count)).append(",\n")
+            .append("    \"p50\": ").append(millis(histogram.percentile(0.5))).append(",\n")
+            .append("    \"p90\": ").append(millis(histogram.percentile(0.9))).append(",\n")
+            .append("    \"p99\": ").append(millis(histogram.percentile(0.99))).append(",\n")
+            .append("    \"p99_9\": ").append(millis(histogram.percentile(0.999))).append(",\n")
+            .append("    \"max\": ").append(millis(histogram.percentile(1.0))).append("\n")
+            .append("  }");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The parts of a response the report needs
+     */
+    private static final class Response {
+        int status;
+        long bytes;
+        boolean keepAlive;
+    }
+
+    /**
+     * One client connection: writes a request, reads the status line and
+     * headers, and skips the body
+     */
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[16 * 1024];
+        private final StringBuilder line = new StringBuilder();
+
+        Connection(InetSocketAddress address, int timeoutSeconds) throws IOException {
+            int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMillis);
+                socket.connect(address, timeoutMillis);
+                in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        Response exchange(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+
+            Response response = new Response();
+            String statusLine = readLine();
+            // "HTTP/1.1 200 OK"
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            try {
+                response.status = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            response.keepAlive = statusLine.startsWith("HTTP/1.1");
+            response.bytes = statusLine.length() + 2;
+
+            long contentLength = -1;
+            String header;
+            while (!(header = readLine()).isEmpty()) {
+                response.bytes += header.length() + 2;
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Bad Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    response.keepAlive = value.equalsIgnoreCase("keep-alive") ||
+                        (response.keepAlive && !value.equalsIgnoreCase("close"));
+                }
+            }
+            response.bytes += 2;
+
+            if (contentLength < 0) {
+                // No length: the body ends when the server closes the connection
+                response.keepAlive = false;
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    response.bytes += read;
+                }
+            } else {
+                long remaining = contentLength;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Response body ended after " + (contentLength - remaining) + " bytes");
+                    }
+                    remaining -= read;
+                }
+                response.bytes += contentLength;
+            }
+            return response;
+        }
+
+        /**
+         * A header line without its CRLF
+         */
+        private String readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with this connection
+            }
+        }
+    }
+}
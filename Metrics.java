@@ -0,0 +1,176 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Request counters and latency histograms, served at /metrics in the
+ * Prometheus text format.
+ *
+ * Two durations are recorded for every response, both measured from the
+ * moment the request head has been read:
+ * - time to first byte: until the response starts leaving for the client
+ *   (the server's own thinking time: cache lookup, negotiation, headers)
+ * - total: until the whole response has been handed to the network
+ * Pipelined responses that are held back to go out in one batch count as
+ * sent when they are queued.
+ *
+ * Each combination of status code and content type has its own pair of
+ * histograms, so slow 404s or slow large images do not hide in the overall
+ * numbers. Both are small, fixed sets, so the number of series stays small.
+ *
+ * Output (a summary per histogram, quantiles in seconds, plus the same over
+ * all responses):
+ *   webserver_requests_total 1234
+ *   webserver_request_duration_seconds{status="200",content_type="text/html",quantile="0.99"} 0.000412
+ *   webserver_request_duration_seconds_count{status="200",content_type="text/html"} 1100
+ */
+final class Metrics {
+    // Requests for this path get the metrics instead of a file from ./www
+    static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /**
+     * The histograms of one status code and content type
+     */
+    private static final class Series {
+        final int status;
+        final String contentType;
+        final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+
+        Series(int status, String contentType) {
+            this.status = status;
+            this.contentType = contentType;
+        }
+    }
+
+    // Indexed by status code, then keyed by content type. Content types are
+    // the constant Strings of HttpRequest's type table, so recording a
+    // response allocates nothing once its series exists.
+    private final AtomicReferenceArray<ConcurrentHashMap<String, Series>> byStatus =
+        new AtomicReferenceArray<>(600);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Record one response
+     *
+     * @param bytes body bytes sent
+     * @param timeToFirstByteNanos from request read to the first response byte sent
+     * @param totalNanos from request read to the last response byte sent
+     */
+    void record(int status, String contentType, long bytes, long timeToFirstByteNanos, long totalNanos) {
+        requests.increment();
+        bytesSent.add(bytes);
+        if (status == 404) {
+            notFound.increment();
+        }
+        Series histograms = series(status, contentType);
+        histograms.timeToFirstByte.record(timeToFirstByteNanos);
+        histograms.total.record(totalNanos);
+    }
+
+    private Series series(int status, String contentType) {
+        int index = status >= 0 && status < byStatus.length() ? status : 0;
+        ConcurrentHashMap<String, Series> byType = byStatus.get(index);
+        if (byType == null) {
+            byStatus.compareAndSet(index, null, new ConcurrentHashMap<>());
+            byType = byStatus.get(index);
+        }
+        Series histograms = byType.get(contentType);
+        if (histograms == null) {
+            histograms = byType.computeIfAbsent(contentType, type -> new Series(status, type));
+        }
+        return histograms;
+    }
+
+    /**
+     * Count a request that failed: malformed, rejected because the server is
+     * full, or cut off by an I/O error
+     */
+    void recordError() {
+        errors.increment();
+    }
+
+    long requestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * The metrics page in the Prometheus text exposition format
+     */
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "webserver_requests_total", "Responses sent", requests.sum());
+        counter(out, "webserver_sent_bytes_total", "Response body bytes sent", bytesSent.sum());
+        counter(out, "webserver_not_found_total", "Responses with status 404", notFound.sum());
+        counter(out, "webserver_errors_total", "Requests that were malformed, rejected or failed with an I/O error", errors.sum());
+
+        // Sorted, so the page reads the same from one scrape to the next
+        List<Series> sorted = new ArrayList<>();
+        for (int status = 0; status < byStatus.length(); status++) {
+            ConcurrentHashMap<String, Series> byType = byStatus.get(status);
+            if (byType != null) {
+                List<Series> ofStatus = new ArrayList<>(byType.values());
+                ofStatus.sort(Comparator.comparing(s -> s.contentType));
+                sorted.addAll(ofStatus);
+            }
+        }
+
+        summary(out, "webserver_time_to_first_byte", "Time from reading a request until its response starts to leave",
+            sorted, true);
+        summary(out, "webserver_request_duration", "Time from reading a request until its whole response has left",
+            sorted, false);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * name_seconds: one summary per series. name_overall_seconds: all series
+     * merged, since quantiles of separate series cannot be added up later.
+     */
+    private static void summary(StringBuilder out, String name, String help, List<Series> sorted,
+            boolean timeToFirstByte) {
+        String perSeries = name + "_seconds";
+        out.append("# HELP ").append(perSeries).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(perSeries).append(" summary\n");
+        LatencyHistogram all = new LatencyHistogram();
+        for (Series s : sorted) {
+            LatencyHistogram histogram = timeToFirstByte ? s.timeToFirstByte : s.total;
+            all.merge(histogram);
+            String labels = "status=\"" + s.status + "\",content_type=\"" + s.contentType + "\"";
+            quantiles(out, perSeries, labels, histogram);
+        }
+
+        String overall = name + "_overall_seconds";
+        out.append("# HELP ").append(overall).append(' ').append(help).append(", all responses\n");
+        out.append("# TYPE ").append(overall).append(" summary\n");
+        quantiles(out, overall, "", all);
+    }
+
+    private static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(separator)
+                .append("quantile=\"").append(quantile).append("\"} ")
+                .append(seconds(histogram.percentile(quantile))).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(seconds(histogram.sum())).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
@@ -0,0 +1,720 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An alternative server engine built on non-blocking NIO (--engine=nio).
+ *
+ * Key NIO Concepts Demonstrated:
+ * - ServerSocketChannel / SocketChannel: channel versions of ServerSocket / Socket
+ *   that can be switched to non-blocking mode
+ * - Selector: one thread watches many channels and is told which ones are
+ *   ready to accept, read or write
+ * - ByteBuffer: reads and writes move bytes through buffers, and may transfer
+ *   fewer bytes than asked for; the rest is retried when the channel is ready
+ *
+ * How it works:
+ * 1. The main thread accepts connections through its own Selector
+ * 2. Each new connection is handed (round robin) to one of a few event loops
+ * 3. An event loop reads until it has the whole request header, then switches
+ *    the connection to writing and sends the response piece by piece
+ * 4. With keep-alive, the connection then goes back to reading: the next
+ *    request may already be buffered (pipelining), or arrive later. An idle
+ *    connection costs no thread, only its buffers.
+ *
+ * No thread ever waits for a single client, so the number of connections is
+ * no longer bounded by the number of threads.
+ */
+final class NioServer {
+    private final ServerContext context;
+    private final ServerConfig config;
+    private final EventLoop[] eventLoops;
+    // How often each event loop looks for connections past their deadline
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final byte[] NOT_FOUND_BODY = HttpRequest.NOT_FOUND_BODY.getBytes(StandardCharsets.US_ASCII);
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger closedIdle = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile boolean draining;
+
+    // Opened by bind()
+    private ServerSocketChannel serverChannel;
+    private volatile Selector acceptSelector;
+
+    NioServer(ServerContext context) {
+        this.context = context;
+        this.config = context.config;
+        this.eventLoops = new EventLoop[config.eventLoops];
+    }
+
+    /**
+     * Step 1: Bind the listening channel and register it for OP_ACCEPT.
+     * Separate from run(), so nothing else is set up for a server that
+     * cannot start.
+     */
+    void bind() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.bind(new InetSocketAddress(config.port), config.backlog);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            if (selector != null) {
+                closeQuietly(selector);
+            }
+            closeQuietly(channel);
+            throw e;
+        }
+        this.serverChannel = channel;
+        this.acceptSelector = selector;
+    }
+
+    /**
+     * Run the accept loop on the calling thread, after bind()
+     */
+    void run() throws IOException {
+        try (
+            ServerSocketChannel serverChannel = this.serverChannel;
+            Selector acceptSelector = this.acceptSelector
+        ) {
+            // Step 2: Start the event loop threads
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop();
+                Thread thread = new Thread(eventLoops[i], "event-loop-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            System.out.println("WebServer started on port " + config.port +
+                " (nio engine, " + eventLoops.length + " event loops)");
+            System.out.println("Open browser: http://localhost:" + config.port + "/index.html");
+            System.out.println("Press Ctrl+C to stop the server");
+            System.out.println("---------------------------------------------------");
+
+            // Step 3: Accept connections and spread them over the event loops
+            int next = 0;
+            while (running) {
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+
+                SocketChannel client;
+                while ((client = serverChannel.accept()) != null) {
+                    if (openConnections.incrementAndGet() > config.maxConnections) {
+                        reject(client);
+                        continue;
+                    }
+                    ServerEvents.Accept event = new ServerEvents.Accept();
+                    event.begin();
+                    client.configureBlocking(false);
+                    eventLoops[next].register(client);
+                    next = (next + 1) % eventLoops.length;
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.clientAddress = String.valueOf(client.socket().getInetAddress());
+                        event.commit();
+                    }
+                }
+            }
+        } finally {
+            // During a drain the event loops keep sending the responses in
+            // progress; drain() stops them
+            if (!draining) {
+                stopEventLoops();
+            }
+        }
+    }
+
+    private void stopEventLoops() {
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+    }
+
+    /**
+     * Graceful shutdown (see GracefulShutdown): stop accepting, close the
+     * connections still waiting for their request, and give the responses
+     * being written up to timeoutNanos to finish
+     *
+     * @return the number of connections cut off when the time ran out
+     */
+    int drain(long timeoutNanos) throws InterruptedException {
+        draining = true;
+        running = false;
+        Selector selector = acceptSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (openConnections.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(10);
+        }
+        int aborted = Math.max(0, openConnections.get());
+        stopEventLoops();
+        return aborted;
+    }
+
+    /** Open connections, whether reading a request or writing a response */
+    int openConnections() {
+        return openConnections.get();
+    }
+
+    /** Connections closed by drain() while waiting for their request */
+    int closedIdleCount() {
+        return closedIdle.get();
+    }
+
+    /**
+     * Too many open connections: answer with the pre-encoded 503 and close.
+     * The response is tiny, so a single write on a fresh connection completes.
+     */
+    private void reject(SocketChannel client) {
+        rejected.incrementAndGet();
+        openConnections.decrementAndGet();
+        try {
+            client.write(ByteBuffer.wrap(HttpRequest.SERVICE_UNAVAILABLE));
+        } catch (IOException e) {
+            // The client is gone already; nothing more to do
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * One-line summary of the gauges, used for periodic logging
+     */
+    String describe() {
+        return "connections=" + openConnections.get() +
+            " loops=" + eventLoops.length +
+            " rejected=" + rejected.get();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do
+        }
+    }
+
+    /**
+     * A thread that serves many connections with one Selector
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean loopRunning = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Called from the accept thread. Channels may only be registered by the
+         * thread that owns the Selector, so queue it and wake the loop up.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void stop() {
+            loopRunning = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+            try {
+                while (loopRunning) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(SWEEP_INTERVAL_NANOS));
+
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        try {
+                            Connection connection = new Connection(channel);
+                            channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException e) {
+                            closeQuietly(channel);  // Client disconnected before we got to it
+                            openConnections.decrementAndGet();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable(key);
+                            } else if (key.isWritable()) {
+                                connection.onWritable(key);
+                            }
+                        } catch (IOException e) {
+                            context.metrics.recordError();
+                            System.err.println("[" + connection.clientIP + "] Error processing request: " + e.getMessage());
+                            connection.close(key);
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (draining || now - nextSweep >= 0) {
+                        closeExpired(now);
+                        nextSweep = now + SWEEP_INTERVAL_NANOS;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        /**
+         * Close the connections that are idle too long, too slow sending
+         * their request head, or too slow taking their response (see
+         * RequestTimeouts). A slow client costs this loop nothing between
+         * sweeps, so checking once per SWEEP_INTERVAL_NANOS is enough.
+         *
+         * While draining, every connection still waiting for its request is
+         * closed: only responses already in progress are finished.
+         */
+        private void closeExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection == null || !key.isValid()) {
+                    continue;
+                }
+                if (!connection.isReadingHead()) {
+                    if (connection.deadline.isSendExpired(now)) {
+                        connection.deadline.sendExpired();
+                        connection.close(key);
+                    }
+                } else if (draining) {
+                    closedIdle.incrementAndGet();
+                    connection.close(key);
+                } else if (connection.deadline.isExpired(now)) {
+                    connection.deadline.expired();
+                    connection.close(key);
+                }
+            }
+        }
+
+        /**
+         * State of one client connection: reading a request, then writing
+         * its response, then (with keep-alive) waiting for the next request
+         */
+        private final class Connection {
+            final SocketChannel channel;
+            final String clientIP;
+            final RequestParser parser = new RequestParser(config.maxHeaderSize);
+            // For the request head, then for the response (see RequestTimeouts)
+            final RequestTimeouts.Deadline deadline = context.timeouts.newDeadline();
+
+            // Response state
+            ByteBuffer[] head;  // Everything before the file body (if any)
+            FileChannel file;
+            long filePosition;
+            long fileEnd;
+            int status;
+            String contentType;
+            long bodyBytes;
+            String requestLine;
+            String target;
+            RequestHeaders requestHeaders;
+
+            // Holds an in-flight slot until the response is sent (see AdmissionControl)
+            boolean admitted;
+
+            // Whether the connection stays open after this response
+            boolean keepAlive;
+            int requestCount;
+
+            // Timings for the metrics (see Metrics)
+            long requestStart;
+            long firstWriteNanos;
+            boolean responseStarted;
+            long sentThisCall;
+
+            Connection(SocketChannel channel) throws IOException {
+                this.channel = channel;
+                this.clientIP = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            }
+
+            /**
+             * Read what has arrived, feed it to the parser and answer the
+             * requests it completes
+             */
+            void onReadable(SelectionKey key) throws IOException {
+                int read = channel.read(parser.receiveBuffer());
+                if (read == -1) {
+                    close(key);  // Client disconnected without sending a request
+                    return;
+                }
+                parser.received(read);
+                deadline.received(read);
+                serve(key);
+            }
+
+            /**
+             * The socket has room again: continue the response, and once it
+             * is out, answer the next request if it has arrived already
+             */
+            void onWritable(SelectionKey key) throws IOException {
+                if (send() && finishResponse(key)) {
+                    serve(key);
+                }
+            }
+
+            /**
+             * Answer the requests received so far, one after another, as long
+             * as each response goes out completely. A pipelined batch is
+             * answered in this loop, not by recursion.
+             */
+            private void serve(SelectionKey key) throws IOException {
+                while (startResponse(key)) {
+                    if (!send()) {
+                        key.interestOps(SelectionKey.OP_WRITE);  // Continue when there is room
+                        return;
+                    }
+                    if (!finishResponse(key)) {
+                        return;
+                    }
+                }
+            }
+
+            /**
+             * Once the whole request head is in, build the response
+             *
+             * @return false if the head is not complete yet, or the request
+             *         was refused (and the connection closed)
+             */
+            private boolean startResponse(SelectionKey key) throws IOException {
+                try {
+                    if (!parser.parse()) {
+                        if (parser.isFull()) {
+                            // Header larger than we are willing to buffer
+                            context.timeouts.recordTooLarge();
+                            context.metrics.recordError();
+                            context.logAccess(clientIP, null, 431, 0, null);
+                            refuse(key, HttpRequest.HEADER_TOO_LARGE);
+                        }
+                        return false;
+                    }
+                } catch (ProtocolException e) {
+                    context.metrics.recordError();
+                    context.logAccess(clientIP, null, 400, 0, null);
+                    refuse(key, HttpRequest.BAD_REQUEST);
+                    return false;
+                }
+
+                // Only GET and HEAD are served; a refusal closes the
+                // connection, so a request body is never taken for another
+                // request
+                RequestParser.Method method = parser.method();
+                if (method != RequestParser.Method.GET && method != RequestParser.Method.HEAD) {
+                    boolean known = method != RequestParser.Method.OTHER;
+                    context.logAccess(clientIP, parser.requestLine(), known ? 405 : 501, 0, null);
+                    refuse(key, known ? HttpRequest.METHOD_NOT_ALLOWED : HttpRequest.NOT_IMPLEMENTED);
+                    return false;
+                }
+
+                // Clients over their rate limit get the pre-encoded 429, and
+                // with too many requests in progress already everyone gets the
+                // pre-encoded 503 (see RateLimiter, AdmissionControl)
+                if (!context.rateLimiter.tryAcquire(clientIP)) {
+                    context.logAccess(clientIP, parser.requestLine(), 429, 0, null);
+                    refuse(key, HttpRequest.TOO_MANY_REQUESTS);
+                    return false;
+                }
+                if (!context.admission.tryEnter()) {
+                    context.metrics.recordError();
+                    context.logAccess(clientIP, parser.requestLine(), 503, 0, null);
+                    refuse(key, HttpRequest.SERVICE_UNAVAILABLE);
+                    return false;
+                }
+                admitted = true;
+
+                requestStart = System.nanoTime();
+                requestLine = parser.requestLine();
+                requestHeaders = parser.headers();
+                target = parser.target();
+
+                // Same rules as the blocking engine. A request body is never
+                // read, so after a request that has one the connection is
+                // closed: its bytes must not be taken for the next request.
+                requestCount++;
+                keepAlive = config.keepAliveTimeoutSeconds > 0
+                    && requestCount < config.maxKeepAliveRequests
+                    && running
+                    && HttpRequest.wantsKeepAlive(parser.version(), requestHeaders)
+                    && !HttpRequest.hasBody(requestHeaders);
+
+                prepareResponse(target, requestHeaders);
+                if (method == RequestParser.Method.HEAD) {
+                    dropBody();
+                }
+                deadline.startSend();
+                return true;
+            }
+
+            /**
+             * The response is out: record it, then close the connection, or
+             * forget this request and wait for the next one. Whatever part of
+             * the next request has arrived already stays in the parser.
+             *
+             * @return true if the connection stays open
+             */
+            private boolean finishResponse(SelectionKey key) {
+                long requestEnd = System.nanoTime();
+                context.metrics.record(status, contentType, bodyBytes,
+                    (responseStarted ? firstWriteNanos : requestEnd) - requestStart, requestEnd - requestStart);
+                context.logAccess(clientIP, requestLine, status, bodyBytes, requestHeaders);
+                if (!keepAlive) {
+                    close(key);
+                    return false;
+                }
+
+                if (file != null) {
+                    closeQuietly(file);
+                    file = null;
+                }
+                admitted = false;
+                context.admission.exit();
+                head = null;
+                requestLine = null;
+                target = null;
+                requestHeaders = null;
+                contentType = null;
+                bodyBytes = 0;
+                responseStarted = false;
+                deadline.endSend();
+
+                // Idle from here on: the sweep closes the connection after the
+                // keep-alive timeout (see closeExpired)
+                parser.startRequest();
+                deadline.startRequest(parser.hasBufferedInput());
+                key.interestOps(SelectionKey.OP_READ);
+                return true;
+            }
+
+            /**
+             * Whether the request head is still being received
+             */
+            boolean isReadingHead() {
+                return head == null;
+            }
+
+            /**
+             * Send a pre-encoded refusal and close. The response is tiny, so
+             * one write on a connection with nothing else queued completes.
+             */
+            private void refuse(SelectionKey key, byte[] response) {
+                try {
+                    channel.write(ByteBuffer.wrap(response));
+                } catch (IOException e) {
+                    // The client is gone already; nothing more to do
+                }
+                close(key);
+            }
+
+            private void prepareResponse(String fileName, RequestHeaders headers) throws IOException {
+                if (fileName.equals(Metrics.PATH)) {
+                    byte[] body = context.metrics.render().getBytes(StandardCharsets.UTF_8);
+                    head = new ByteBuffer[] {
+                        ByteBuffer.wrap(new HeaderBlock("HTTP/1.1 200 OK")
+                            .add("Content-Type", Metrics.CONTENT_TYPE)
+                            .add("Content-Length", body.length)
+                            .add("Cache-Control", "no-store")
+                            .encode(context.connectionHeaders(keepAlive))),
+                        ByteBuffer.wrap(body)
+                    };
+                    status = 200;
+                    contentType = "text/plain";
+                    bodyBytes = body.length;
+                    return;
+                }
+
+                ContentCache.CachedFile resource = HttpRequest.findResource(context, fileName, headers);
+                if (resource != null) {
+                    contentType = resource.contentType;
+                }
+                if (resource == null) {
+                    head = new ByteBuffer[] {
+                        ByteBuffer.wrap(new HeaderBlock("HTTP/1.1 404 Not Found")
+                            .add("Content-Type", "text/html")
+                            .add("Content-Length", HttpRequest.NOT_FOUND_BODY.length())
+                            .encode(context.connectionHeaders(keepAlive))),
+                        ByteBuffer.wrap(NOT_FOUND_BODY)
+                    };
+                    status = 404;
+                    contentType = "text/html";
+                    bodyBytes = NOT_FOUND_BODY.length;
+                    return;
+                }
+                if (Validators.notModified(headers, resource.etag, resource.lastModified)) {
+                    head = new ByteBuffer[] { ByteBuffer.wrap(resource.notModifiedHeaders(keepAlive)) };
+                    status = 304;
+                    return;
+                }
+
+                // This engine answers single ranges; for several ranges it
+                // sends the whole file, which HTTP allows
+                ByteRanges ranges = HttpRequest.requestedRanges(headers, resource);
+                if (ranges != null && ranges.count() > 1) {
+                    ranges = null;
+                }
+                if (ranges != null && !ranges.isSatisfiable()) {
+                    head = new ByteBuffer[] { ByteBuffer.wrap(
+                        HttpRequest.rangeNotSatisfiableHeaders(resource).encode(context.connectionHeaders(keepAlive))) };
+                    status = 416;
+                    return;
+                }
+
+                byte[] headerBlock;
+                long start;
+                long count;
+                if (ranges == null) {
+                    headerBlock = resource.headers(keepAlive);
+                    start = 0;
+                    count = resource.length;
+                    status = 200;
+                } else {
+                    headerBlock = HttpRequest.singleRangeHeaders(resource, ranges).encode(context.connectionHeaders(keepAlive));
+                    start = ranges.start(0);
+                    count = ranges.length(0);
+                    status = 206;
+                }
+                bodyBytes = count;
+
+                if (resource.body != null) {
+                    // Pre-rendered headers and an in-memory body go out
+                    // together in one gathering write
+                    head = new ByteBuffer[] {
+                        ByteBuffer.wrap(headerBlock),
+                        ByteBuffer.wrap(resource.body, (int) start, (int) count)
+                    };
+                } else {
+                    file = FileChannel.open(resource.path);
+                    filePosition = start;
+                    fileEnd = start + count;
+                    head = new ByteBuffer[] { ByteBuffer.wrap(headerBlock) };
+                }
+            }
+
+            /**
+             * Answering HEAD: keep only the header block that prepareResponse()
+             * put first, and send no body
+             */
+            private void dropBody() {
+                head = new ByteBuffer[] { head[0] };
+                if (file != null) {
+                    closeQuietly(file);
+                    file = null;
+                }
+                bodyBytes = 0;
+            }
+
+            /**
+             * Write as much of the response as the socket accepts right now.
+             * If the socket buffer fills up, the caller stays registered for
+             * OP_WRITE and continues when the Selector says there is room again.
+             *
+             * @return true once the whole response is sent
+             */
+            private boolean send() throws IOException {
+                // Everything this call sends is one JFR event (see ServerEvents)
+                ServerEvents.BodyTransfer event = new ServerEvents.BodyTransfer();
+                event.begin();
+                try {
+                    return sendAvailable();
+                } finally {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.path = target;
+                        event.bytes = sentThisCall;
+                        event.commit();
+                    }
+                }
+            }
+
+            private boolean sendAvailable() throws IOException {
+                sentThisCall = 0;
+                if (hasRemaining(head)) {
+                    long written = channel.write(head);
+                    sentThisCall += written;
+                    deadline.sent(written);
+                    if (written > 0 && !responseStarted) {
+                        responseStarted = true;
+                        firstWriteNanos = System.nanoTime();
+                    }
+                    if (hasRemaining(head)) {
+                        return false;
+                    }
+                }
+
+                // Zero-copy: the operating system moves file bytes straight to
+                // the socket. In non-blocking mode transferTo() sends what fits
+                // in the socket buffer and returns; we continue on OP_WRITE.
+                while (file != null && filePosition < fileEnd) {
+                    long sent = file.transferTo(filePosition, fileEnd - filePosition, channel);
+                    if (sent == 0) {
+                        if (filePosition >= file.size()) {
+                            throw new EOFException("File truncated while sending");
+                        }
+                        return false;  // Socket buffer full, wait for OP_WRITE
+                    }
+                    filePosition += sent;
+                    sentThisCall += sent;
+                    deadline.sent(sent);
+                }
+                return true;
+            }
+
+            void close(SelectionKey key) {
+                key.cancel();
+                closeQuietly(channel);
+                if (file != null) {
+                    closeQuietly(file);
+                    file = null;
+                }
+                if (admitted) {
+                    admitted = false;
+                    context.admission.exit();
+                }
+                openConnections.decrementAndGet();
+            }
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-client-IP rate limiting (--rate-limit), so one client cannot take
+ * the whole server for itself. Requests over the limit get "429 Too Many
+ * Requests".
+ *
+ * Each client has a token bucket: it holds up to --rate-burst tokens,
+ * refills at --rate-limit tokens per second, and every request takes one.
+ * The bucket is stored as a single number, the time at which it would be
+ * full again (the "generic cell rate algorithm"): a request adds one
+ * refill interval to that time, and is refused if the result lies further
+ * in the future than a full bucket lasts. One compare-and-set per request,
+ * no lock, no background refill.
+ *
+ * Buckets live in a table of fixed size (--rate-limit-table), so memory
+ * stays bounded however many addresses a client population (or an
+ * attacker) uses:
+ * - A client's bucket is in one of a few slots picked by the hash of its
+ *   address
+ * - A bucket that is full again carries no information (a new bucket is
+ *   full too), so its slot is simply reused by the next address that needs
+ *   one: idle clients are evicted without any sweeping
+ * - If every slot is busy, the bucket closest to full is replaced. That
+ *   client is treated a little too kindly, which is the price of a bounded
+ *   table.
+ *
+ * Two threads adding the same new address at once may each create a
+ * bucket for it; the extra one is evicted once idle. This can only let a
+ * client through, never block it by mistake.
+ */
+final class RateLimiter {
+    static final int DEFAULT_TABLE_SIZE = 65536;
+    static final int MAX_TABLE_SIZE = 1 << 26;
+
+    // How many slots a client's bucket may be in
+    private static final int PROBES = 4;
+
+    private final long intervalNanos;    // Refill time for one token
+    private final long burstNanos;       // Refill time for a full bucket
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong evictedBusy = new AtomicLong();
+
+    /**
+     * @param requestsPerSecond refill rate per client, 0 = no limit
+     * @param burst bucket size in requests
+     * @param tableSize number of buckets, rounded up to a power of two
+     *        (at most MAX_TABLE_SIZE)
+     */
+    RateLimiter(int requestsPerSecond, int burst, int tableSize) {
+        if (requestsPerSecond == 0) {
+            this.intervalNanos = 0;
+            this.burstNanos = 0;
+            this.table = null;
+            this.mask = 0;
+            return;
+        }
+        this.intervalNanos = Math.max(1, 1_000_000_000L / requestsPerSecond);
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        int size = Integer.highestOneBit(Math.max(PROBES, Math.min(MAX_TABLE_SIZE, tableSize)) - 1) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Take a token for one request from this client
+     *
+     * @return false if the client is over its limit and should get 429
+     */
+    boolean tryAcquire(String clientIP) {
+        if (table == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        AtomicLong fullAt = bucketFor(clientIP, now).fullAt;
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                limited.incrementAndGet();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The client's bucket, or a new one in a free, idle or least busy slot
+     */
+    private Bucket bucketFor(String clientIP, long now) {
+        int hash = clientIP.hashCode() * 0x9E3779B9;
+        hash ^= hash >>> 16;
+
+        int reusable = -1;
+        int leastBusy = -1;
+        long leastBusyFullAt = 0;
+        for (int probe = 0; probe < PROBES; probe++) {
+            int slot = (hash + probe) & mask;
+            Bucket bucket = table.get(slot);
+            if (bucket == null) {
+                if (reusable < 0) {
+                    reusable = slot;
+                }
+                continue;
+            }
+            if (bucket.clientIP.equals(clientIP)) {
+                return bucket;
+            }
+            long fullAt = bucket.fullAt.get();
+            if (fullAt - now <= 0) {
+                if (reusable < 0) {
+                    reusable = slot;
+                }
+            } else if (leastBusy < 0 || fullAt - leastBusyFullAt < 0) {
+                leastBusy = slot;
+                leastBusyFullAt = fullAt;
+            }
+        }
+
+        Bucket bucket = new Bucket(clientIP, now);
+        if (reusable < 0) {
+            reusable = leastBusy;
+            evictedBusy.incrementAndGet();
+        }
+        // A racing thread may have filled the slot meanwhile; either way the
+        // new bucket serves this request, and a lost one only forgets state
+        table.set(reusable, bucket);
+        return bucket;
+    }
+
+    boolean isEnabled() {
+        return table != null;
+    }
+
+    /**
+     * One-line summary of the gauges, used for periodic logging
+     */
+    String describe() {
+        return "rate-limited=" + limited.get() + " rate-evicted-busy=" + evictedBusy.get();
+    }
+
+    /**
+     * One client's token bucket, as the time it will be full again
+     */
+    private static final class Bucket {
+        final String clientIP;
+        final AtomicLong fullAt;
+
+        Bucket(String clientIP, long now) {
+            this.clientIP = clientIP;
+            this.fullAt = new AtomicLong(now);
+        }
+    }
+}
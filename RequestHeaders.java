@@ -0,0 +1,165 @@
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The headers of one request, as found by RequestParser.
+ *
+ * Nothing is copied while parsing: each header is a pair of byte ranges in
+ * the parser's buffer, plus its HeaderName ID when it is a well-known one.
+ * A value only becomes a String when a handler asks for it, and then it is
+ * remembered for the rest of the request. Headers nobody asks for (most of
+ * what a browser sends) never cost more than their offsets.
+ *
+ * The object is reused for every request on a connection; its contents are
+ * only valid until the next request is read.
+ */
+final class RequestHeaders {
+    // Most requests carry 5-20 headers
+    static final int MAX_HEADERS = 100;
+
+    private static final HeaderName[] NAMES = HeaderName.values();
+
+    private final byte[] buffer;
+    private int count;
+    private final int[] nameStarts = new int[MAX_HEADERS];
+    private final int[] nameEnds = new int[MAX_HEADERS];
+    private final int[] valueStarts = new int[MAX_HEADERS];
+    private final int[] valueEnds = new int[MAX_HEADERS];
+    private final HeaderName[] ids = new HeaderName[MAX_HEADERS];  // null: not well-known
+
+    // Per well-known header: index of its first occurrence (-1 if absent),
+    // and its decoded value once somebody asked for it
+    private final int[] firstIndex = new int[NAMES.length];
+    private final String[] decoded = new String[NAMES.length];
+
+    RequestHeaders(byte[] buffer) {
+        this.buffer = buffer;
+        clear();
+    }
+
+    /**
+     * Forget the previous request's headers
+     */
+    void clear() {
+        count = 0;
+        Arrays.fill(firstIndex, -1);
+        Arrays.fill(decoded, null);
+    }
+
+    /**
+     * Record a header found by the parser: its name is buffer[nameStart..nameEnd)
+     *
+     * @throws ProtocolException if the request has too many headers
+     */
+    void add(int nameStart, int nameEnd, int valueStart, int valueEnd) throws ProtocolException {
+        if (count == MAX_HEADERS) {
+            throw new ProtocolException("More than " + MAX_HEADERS + " headers");
+        }
+        HeaderName id = HeaderName.lookup(buffer, nameStart, nameEnd);
+        nameStarts[count] = nameStart;
+        nameEnds[count] = nameEnd;
+        valueStarts[count] = valueStart;
+        valueEnds[count] = valueEnd;
+        ids[count] = id;
+        if (id != null && firstIndex[id.ordinal()] < 0) {
+            firstIndex[id.ordinal()] = count;
+        }
+        count++;
+    }
+
+    boolean contains(HeaderName name) {
+        return firstIndex[name.ordinal()] >= 0;
+    }
+
+    /**
+     * The value of a well-known header, or null if the request does not have
+     * it. A header sent several times is returned as one comma-separated
+     * list, as HTTP defines.
+     */
+    String get(HeaderName name) {
+        int first = firstIndex[name.ordinal()];
+        if (first < 0) {
+            return null;
+        }
+        String value = decoded[name.ordinal()];
+        if (value == null) {
+            value = value(first);
+            for (int i = first + 1; i < count; i++) {
+                if (ids[i] == name) {
+                    value = value + ", " + value(i);
+                }
+            }
+            decoded[name.ordinal()] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Does a comma-separated header (like "Connection: keep-alive, Upgrade")
+     * contain this token, ignoring case? Looks at the bytes directly, so the
+     * keep-alive decision on every request creates no String.
+     *
+     * @param lowerCaseToken the token in lower case ASCII
+     */
+    boolean hasToken(HeaderName name, String lowerCaseToken) {
+        for (int i = firstIndex[name.ordinal()]; i >= 0 && i < count; i++) {
+            if (ids[i] == name && valueHasToken(i, lowerCaseToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean valueHasToken(int index, String token) {
+        int end = valueEnds[index];
+        int i = valueStarts[index];
+        while (i < end) {
+            // Skip separators and spaces to the start of the next element
+            while (i < end && (buffer[i] == ',' || buffer[i] == ' ' || buffer[i] == '\t')) {
+                i++;
+            }
+            int elementStart = i;
+            while (i < end && buffer[i] != ',') {
+                i++;
+            }
+            int elementEnd = i;
+            while (elementEnd > elementStart && (buffer[elementEnd - 1] == ' ' || buffer[elementEnd - 1] == '\t')) {
+                elementEnd--;
+            }
+            if (elementEnd - elementStart == token.length() && regionMatches(elementStart, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionMatches(int start, String lowerCaseText) {
+        for (int j = 0; j < lowerCaseText.length(); j++) {
+            if (RequestParser.toLowerCase(buffer[start + j]) != lowerCaseText.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Number of headers in the request, well-known or not */
+    int size() {
+        return count;
+    }
+
+    /** Name of header i, as sent. Creates a String. */
+    String name(int i) {
+        return new String(buffer, nameStarts[i], nameEnds[i] - nameStarts[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /** Value of header i, without surrounding spaces. Creates a String. */
+    String value(int i) {
+        return new String(buffer, valueStarts[i], valueEnds[i] - valueStarts[i], StandardCharsets.ISO_8859_1);
+    }
+
+    /** The well-known ID of header i, or null */
+    HeaderName id(int i) {
+        return ids[i];
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses HTTP request heads (request line and headers) straight from bytes.
+ *
+ * The old approach wrapped the socket in an InputStreamReader and a
+ * BufferedReader, decoded every line into a String and split the request
+ * line with a StringTokenizer: several objects per line, most of them thrown
+ * away immediately. This parser instead:
+ * - Reads into one byte[] that is reused for every request on the connection
+ * - Walks the bytes with a small state machine, one byte at a time, and can
+ *   stop at any point and continue when more bytes arrive
+ * - Recognizes the method and the HTTP version by comparing bytes, so they
+ *   become enum constants without creating a String
+ * - Remembers where each header name and value starts and ends instead of
+ *   copying them (see RequestHeaders); a String is only made when somebody
+ *   asks for one
+ *
+ * Request Head Format:
+ * GET /index.html HTTP/1.1\r\n
+ * Host: localhost:5555\r\n
+ * Connection: keep-alive\r\n
+ * \r\n
+ *
+ * Bytes after the head (the next pipelined request) stay in the buffer for
+ * the next call. Offsets are only valid until the next request is read.
+ */
+final class RequestParser {
+    static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    enum Method { GET, HEAD, POST, PUT, DELETE, OPTIONS, TRACE, CONNECT, PATCH, OTHER }
+
+    enum Version { HTTP_1_0, HTTP_1_1, OTHER }
+
+    private static final byte[][] METHOD_NAMES = new byte[Method.values().length][];
+    static {
+        for (Method method : Method.values()) {
+            METHOD_NAMES[method.ordinal()] = method.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+    // Characters allowed in methods and header names (RFC 9110 "tchar")
+    private static final boolean[] TOKEN_CHARS = new boolean[256];
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            TOKEN_CHARS[c] = true;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            TOKEN_CHARS[c] = true;
+            TOKEN_CHARS[c - 'a' + 'A'] = true;
+        }
+        for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+            TOKEN_CHARS[c] = true;
+        }
+    }
+
+    // Parser states
+    private static final int LINE_START = 0;          // Before the request line (stray CRLFs allowed)
+    private static final int METHOD = 1;
+    private static final int TARGET = 2;
+    private static final int VERSION = 3;
+    private static final int REQUEST_LINE_LF = 4;     // Saw CR at the end of the request line
+    private static final int HEADER_START = 5;        // Start of a header line, or the blank line
+    private static final int HEADER_NAME = 6;
+    private static final int VALUE_START = 7;         // Skipping spaces after the colon
+    private static final int VALUE = 8;
+    private static final int HEADER_LF = 9;           // Saw CR at the end of a header line
+    private static final int END_LF = 10;             // Saw CR of the blank line
+    private static final int DONE = 11;               // The whole head has been parsed
+
+    private final byte[] buffer;
+    private int limit;      // End of the bytes received so far
+    private int position;   // Next byte to parse
+    private int state;
+
+    // The request being parsed, as offsets into buffer
+    private int headStart;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int nameStart;    // Header being parsed
+    private int nameEnd;
+    private int valueStart;
+    private final RequestHeaders headers;
+    private Method method;
+    private Version version;
+
+    RequestParser(int bufferSize) {
+        this.buffer = new byte[bufferSize];
+        this.headers = new RequestHeaders(buffer);
+    }
+
+    /**
+     * Read the next request head from the stream, blocking until it is complete.
+     * The first call starts with an empty buffer; later calls first use the
+     * bytes that were already received after the previous head.
+     *
+     * @return false if the stream ended cleanly before a new request began
+     * @throws ProtocolException if the head is malformed or does not fit in the buffer
+     * @throws EOFException if the stream ended in the middle of a request
+     */
+    boolean readRequest(InputStream in) throws IOException {
+        startRequest();
+        while (!parse()) {
+            if (limit == buffer.length) {
+                throw new ProtocolException("Request header larger than " + buffer.length + " bytes");
+            }
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                if (state == LINE_START) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next request head like readRequest(InputStream), but within
+     * the connection's deadline (see RequestTimeouts): every read waits at
+     * most until the deadline, so a slow or silent client cannot hold the
+     * thread.
+     *
+     * @throws SocketTimeoutException if the deadline passes first
+     * @throws HeaderTooLargeException if the head does not fit in the buffer
+     */
+    boolean readRequest(InputStream in, Socket socket, RequestTimeouts.Deadline deadline) throws IOException {
+        startRequest();
+        deadline.startRequest(limit > 0);
+        while (!parse()) {
+            if (limit == buffer.length) {
+                throw new HeaderTooLargeException(buffer.length);
+            }
+            socket.setSoTimeout(deadline.readTimeoutMillis());
+            int read;
+            try {
+                read = in.read(buffer, limit, buffer.length - limit);
+            } catch (SocketTimeoutException e) {
+                if (deadline.keepWaiting()) {
+                    continue;
+                }
+                throw deadline.expired();
+            }
+            if (read < 0) {
+                if (state == LINE_START) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            deadline.received(read);
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the previous request and move any bytes received after it (the
+     * start of the next pipelined request) to the front of the buffer
+     */
+    void startRequest() {
+        int remaining = limit - position;
+        if (remaining > 0 && position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        limit = remaining;
+        position = 0;
+        state = LINE_START;
+        headers.clear();
+        method = null;
+        version = null;
+    }
+
+    /**
+     * The free part of the buffer, for reading from a channel: read into it,
+     * then call received() with the number of bytes read
+     */
+    ByteBuffer receiveBuffer() {
+        return ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+    }
+
+    void received(int count) {
+        limit += count;
+    }
+
+    boolean isFull() {
+        return limit == buffer.length;
+    }
+
+    /**
+     * Parse the bytes received so far, continuing where the previous call stopped
+     *
+     * @return true once the blank line that ends the head has been parsed
+     * @throws ProtocolException if the head is malformed
+     */
+    boolean parse() throws ProtocolException {
+        if (state == DONE) {
+            return true;
+        }
+        // The call that completes the head is recorded for JFR (see ServerEvents)
+        ServerEvents.RequestParse event = new ServerEvents.RequestParse();
+        event.begin();
+        boolean done = parseHead();
+        if (done) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = target();
+                event.bytes = position - headStart;
+                event.commit();
+            }
+        }
+        return done;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private boolean parseHead() throws ProtocolException {
+        byte[] data = buffer;
+        int i = position;
+        int s = state;
+        try {
+            for (; i < limit; i++) {
+                byte b = data[i];
+                switch (s) {
+                    case LINE_START:
+                        if (b == '\r' || b == '\n') {
+                            break;  // Tolerate stray CRLFs between requests
+                        }
+                        headStart = i;
+                        s = METHOD;
+                        // fall through
+                    case METHOD:
+                        if (b == ' ') {
+                            if (i == headStart) {
+                                throw new ProtocolException("Missing request method");
+                            }
+                            method = toMethod(data, headStart, i);
+                            targetStart = i + 1;
+                            s = TARGET;
+                        } else if (!TOKEN_CHARS[b & 0xff]) {
+                            throw new ProtocolException("Malformed request method");
+                        }
+                        break;
+                    case TARGET:
+                        // Most bytes need no decision: skip them in a tight loop
+                        while (b != ' ' && b != '\r' && b != '\n') {
+                            if (++i == limit) {
+                                return false;
+                            }
+                            b = data[i];
+                        }
+                        if (b == ' ') {
+                            if (i == targetStart) {
+                                throw new ProtocolException("Missing request target");
+                            }
+                            targetEnd = i;
+                            versionStart = i + 1;
+                            s = VERSION;
+                        } else if (b == '\r' || b == '\n') {
+                            throw new ProtocolException("Missing HTTP version");
+                        }
+                        break;
+                    case VERSION:
+                        while (b != '\r' && b != '\n') {
+                            if (++i == limit) {
+                                return false;
+                            }
+                            b = data[i];
+                        }
+                        versionEnd = i;
+                        version = toVersion(data, versionStart, i);
+                        s = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+                        break;
+                    case REQUEST_LINE_LF:
+                    case HEADER_LF:
+                        if (b != '\n') {
+                            throw new ProtocolException("CR without LF");
+                        }
+                        s = HEADER_START;
+                        break;
+                    case HEADER_START:
+                        if (b == '\r') {
+                            s = END_LF;
+                            break;
+                        }
+                        if (b == '\n') {
+                            i++;  // Past the final LF
+                            s = DONE;
+                            return true;
+                        }
+                        nameStart = i;
+                        s = HEADER_NAME;
+                        // fall through
+                    case HEADER_NAME:
+                        while (TOKEN_CHARS[b & 0xff]) {
+                            if (++i == limit) {
+                                return false;
+                            }
+                            b = data[i];
+                        }
+                        if (b == ':') {
+                            if (i == nameStart) {
+                                throw new ProtocolException("Empty header name");
+                            }
+                            nameEnd = i;
+                            s = VALUE_START;
+                        } else {
+                            throw new ProtocolException("Malformed header name");
+                        }
+                        break;
+                    case VALUE_START:
+                        if (b == ' ' || b == '\t') {
+                            break;
+                        }
+                        valueStart = i;
+                        s = VALUE;
+                        // fall through
+                    case VALUE:
+                        while (b != '\r' && b != '\n') {
+                            if (++i == limit) {
+                                return false;
+                            }
+                            b = data[i];
+                        }
+                        int end = i;
+                        while (end > valueStart && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+                            end--;
+                        }
+                        headers.add(nameStart, nameEnd, valueStart, end);
+                        s = b == '\r' ? HEADER_LF : HEADER_START;
+                        break;
+                    case END_LF:
+                        if (b != '\n') {
+                            throw new ProtocolException("CR without LF");
+                        }
+                        i++;  // Past the final LF
+                        s = DONE;
+                        return true;
+                    default:
+                        throw new IllegalStateException("Unknown parser state " + s);
+                }
+            }
+        } finally {
+            position = i;
+            state = s;
+        }
+        return false;
+    }
+
+    /**
+     * Bytes of the next request have already been received
+     */
+    boolean hasBufferedInput() {
+        return position < limit;
+    }
+
+    Method method() {
+        return method;
+    }
+
+    Version version() {
+        return version;
+    }
+
+    /**
+     * The request target (like "/index.html"). Creates a String.
+     */
+    String target() {
+        return new String(buffer, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The HTTP version as sent (like "HTTP/1.1"). Creates a String.
+     */
+    String versionText() {
+        return new String(buffer, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The whole request line, for logging. Creates a String.
+     */
+    String requestLine() {
+        return new String(buffer, headStart, versionEnd - headStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The headers of the request just read
+     */
+    RequestHeaders headers() {
+        return headers;
+    }
+
+    private static Method toMethod(byte[] data, int start, int end) {
+        for (Method candidate : Method.values()) {
+            if (candidate != Method.OTHER && equalsBytes(data, start, end, METHOD_NAMES[candidate.ordinal()])) {
+                return candidate;
+            }
+        }
+        return Method.OTHER;
+    }
+
+    private static Version toVersion(byte[] data, int start, int end) {
+        if (equalsBytes(data, start, end, HTTP_1_1)) {
+            return Version.HTTP_1_1;
+        }
+        if (equalsBytes(data, start, end, HTTP_1_0)) {
+            return Version.HTTP_1_0;
+        }
+        return Version.OTHER;
+    }
+
+    private static boolean equalsBytes(byte[] data, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (data[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * The request head is larger than the buffer (--max-header-size);
+     * answered with 431 rather than 400
+     */
+    static final class HeaderTooLargeException extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        HeaderTooLargeException(int size) {
+            super("Request header larger than " + size + " bytes");
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Time limits for receiving request heads and sending responses, so that
+ * slow clients cannot pin the server's threads and connections ("slowloris":
+ * open many connections and trickle a header byte every few seconds, so
+ * none of them ever ends; or ask for a large file and read one byte at a
+ * time).
+ *
+ * A connection is in one of two phases, each with its own limit:
+ * - Idle: waiting for the first byte of the next request. Limited by the
+ *   keep-alive timeout (--keep-alive-timeout), or by the header timeout when
+ *   keep-alive is off. Running out here is normal: the client is done.
+ *   Between requests, the blocking engine also gives the connection up
+ *   early when other connections are queued for its thread: an idle
+ *   client can reconnect, a queued one can only wait.
+ * - Receiving a head: from its first byte to the blank line that ends it.
+ *   The whole head must arrive within --header-timeout seconds, and at no
+ *   point may the client fall behind --min-rate bytes per second (after a
+ *   short grace period, so the first packet does not have to be large).
+ *
+ * The two limits combine into one deadline for the next read: a client
+ * earns MIN_RATE_GRACE plus one second for every --min-rate bytes it has
+ * sent, capped by the header timeout. The blocking engine turns it into
+ * the socket read timeout; the nio engine checks it on every tick of its
+ * event loops. Either way a violator is simply closed: answering a client
+ * that is not reading properly only costs more.
+ *
+ * Sending a response has a limit of its own: the client must take some of
+ * it at least every --send-timeout seconds, and on average no less than
+ * --min-rate bytes per second (after the same grace period). Only bytes the
+ * kernel has accepted count, so a client reading one byte at a time fills
+ * the socket buffer and then stops making progress. The blocking engine
+ * cannot interrupt a blocked write with a timeout, so a watchdog closes
+ * such connections under it (see ConnectionTracker); the nio engine checks
+ * on every tick, as for heads.
+ *
+ * The size of a head is limited separately, by the parser's buffer
+ * (--max-header-size).
+ */
+final class RequestTimeouts {
+    static final int DEFAULT_HEADER_TIMEOUT = 10;
+    static final int DEFAULT_MIN_RATE = 500;
+    static final int DEFAULT_SEND_TIMEOUT = 30;
+    static final int DEFAULT_MAX_HEADER_SIZE = RequestParser.DEFAULT_BUFFER_SIZE;
+
+    // Time a client has before --min-rate applies
+    static final long MIN_RATE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    // How often an idle keep-alive connection checks whether its thread is
+    // needed elsewhere
+    static final int IDLE_CHECK_MILLIS = 50;
+
+    private final long idleNanos;
+    private final long headerNanos;
+    private final int minBytesPerSecond;    // 0 = no minimum
+    private final long sendNanos;           // 0 = no limit
+
+    private final AtomicLong headerTimeouts = new AtomicLong();
+    private final AtomicLong tooSlow = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong idleReleased = new AtomicLong();
+    private final AtomicLong sendTimeouts = new AtomicLong();
+
+    RequestTimeouts(ServerConfig config) {
+        this.headerNanos = TimeUnit.SECONDS.toNanos(config.headerTimeoutSeconds);
+        this.idleNanos = config.keepAliveTimeoutSeconds > 0
+            ? TimeUnit.SECONDS.toNanos(config.keepAliveTimeoutSeconds)
+            : headerNanos;
+        this.minBytesPerSecond = config.minRate;
+        this.sendNanos = TimeUnit.SECONDS.toNanos(config.sendTimeoutSeconds);
+    }
+
+    /**
+     * A deadline for one connection, reused for each of its requests
+     */
+    Deadline newDeadline() {
+        return new Deadline(null);
+    }
+
+    /**
+     * A deadline that also ends the wait between two requests as soon as
+     * releaseIdle returns true
+     */
+    Deadline newDeadline(BooleanSupplier releaseIdle) {
+        return new Deadline(releaseIdle);
+    }
+
+    /** Count a head that did not fit in the parser's buffer */
+    void recordTooLarge() {
+        tooLarge.incrementAndGet();
+    }
+
+    /**
+     * One-line summary of the gauges, used for periodic logging
+     */
+    String describe() {
+        return "header-timeouts=" + headerTimeouts.get() +
+            " too-slow=" + tooSlow.get() +
+            " too-large=" + tooLarge.get() +
+            " idle-released=" + idleReleased.get() +
+            " send-timeouts=" + sendTimeouts.get();
+    }
+
+    final class Deadline {
+        private final BooleanSupplier releaseIdle;  // null: wait out the idle time
+        private long idleSince;
+        private long headStart;     // 0 while idle
+        private long received;
+        private int requests;
+        private boolean released;
+
+        // Sending: written by the connection's own thread, read by the
+        // blocking engine's watchdog
+        private volatile boolean sending;
+        private volatile long sendExpiresAt;
+        private long sendStart;
+        private long sent;
+
+        private Deadline(BooleanSupplier releaseIdle) {
+            this.releaseIdle = releaseIdle;
+            idleSince = System.nanoTime();
+        }
+
+        /**
+         * A new request begins. Bytes already buffered (a pipelined request)
+         * mean its head has started arriving.
+         */
+        void startRequest(boolean bytesBuffered) {
+            long now = System.nanoTime();
+            idleSince = now;
+            headStart = bytesBuffered ? now : 0;
+            received = 0;
+            requests++;
+        }
+
+        /**
+         * Count bytes of the request head as they arrive
+         */
+        void received(int count) {
+            if (headStart == 0) {
+                headStart = System.nanoTime();
+            }
+            received += count;
+        }
+
+        /**
+         * The point in time (System.nanoTime()) by which more bytes must arrive
+         */
+        long expiresAt() {
+            if (headStart == 0) {
+                return idleSince + idleNanos;
+            }
+            return headStart + Math.min(headerNanos, earnedNanos());
+        }
+
+        /**
+         * How long the bytes received so far allow the head to take at
+         * --min-rate
+         */
+        private long earnedNanos() {
+            if (minBytesPerSecond == 0) {
+                return Long.MAX_VALUE;
+            }
+            return MIN_RATE_GRACE_NANOS + received * 1_000_000_000L / minBytesPerSecond;
+        }
+
+        /**
+         * Timeout for the next blocking read, in milliseconds
+         *
+         * @throws SocketTimeoutException if the deadline has passed already
+         */
+        int readTimeoutMillis() throws SocketTimeoutException {
+            long remaining = expiresAt() - System.nanoTime();
+            if (remaining <= 0) {
+                throw expired();
+            }
+            // 0 would mean "no timeout"
+            int millis = (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            return mayRelease() ? Math.min(millis, IDLE_CHECK_MILLIS) : millis;
+        }
+
+        /**
+         * After a read timed out: whether to keep waiting. Only an idle
+         * keep-alive connection whose thread is not needed elsewhere does.
+         */
+        boolean keepWaiting() {
+            if (!mayRelease() || isExpired(System.nanoTime())) {
+                return false;
+            }
+            if (releaseIdle.getAsBoolean()) {
+                released = true;
+                idleReleased.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Waiting for a request after the first: the client already has
+         * its answers and can reconnect if we close
+         */
+        private boolean mayRelease() {
+            return releaseIdle != null && headStart == 0 && requests > 1;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt() >= 0;
+        }
+
+        /**
+         * A response (or the next part of one) starts going out
+         */
+        void startSend() {
+            long now = System.nanoTime();
+            sendStart = now;
+            sent = 0;
+            sendExpiresAt = now + sendLimitNanos(now);
+            sending = true;
+        }
+
+        /**
+         * Count response bytes as the kernel accepts them
+         */
+        void sent(long count) {
+            if (count > 0) {
+                long now = System.nanoTime();
+                sent += count;
+                sendExpiresAt = now + sendLimitNanos(now);
+            }
+        }
+
+        /**
+         * Nothing more to send for now
+         */
+        void endSend() {
+            sending = false;
+        }
+
+        /**
+         * How long from now the client has to take more of the response: no
+         * more than the send timeout, and no more than the bytes taken so
+         * far allow at --min-rate
+         */
+        private long sendLimitNanos(long now) {
+            long limit = sendNanos > 0 ? sendNanos : Long.MAX_VALUE / 2;
+            if (minBytesPerSecond > 0) {
+                long earned = MIN_RATE_GRACE_NANOS + sent / minBytesPerSecond * 1_000_000_000L
+                    + sent % minBytesPerSecond * 1_000_000_000L / minBytesPerSecond;
+                limit = Math.min(limit, sendStart + earned - now);
+            }
+            return limit;
+        }
+
+        /**
+         * Whether a response is going out slower than the limits allow
+         */
+        boolean isSendExpired(long now) {
+            return sending && (sendNanos > 0 || minBytesPerSecond > 0) && now - sendExpiresAt >= 0;
+        }
+
+        /**
+         * Count a response cut off for being taken too slowly
+         */
+        void sendExpired() {
+            sendTimeouts.incrementAndGet();
+        }
+
+        /**
+         * Count this connection's expiry, and describe it
+         */
+        SocketTimeoutException expired() {
+            if (released) {
+                return new SocketTimeoutException("Idle connection closed, its thread is needed");
+            }
+            if (headStart == 0) {
+                return new SocketTimeoutException("Idle for longer than the keep-alive timeout");
+            }
+            if (earnedNanos() >= headerNanos) {
+                headerTimeouts.incrementAndGet();
+                return new SocketTimeoutException("Request header not complete within the header timeout");
+            }
+            tooSlow.incrementAndGet();
+            return new SocketTimeoutException("Request header sent slower than " + minBytesPerSecond + " bytes/s");
+        }
+    }
+}
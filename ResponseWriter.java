@@ -0,0 +1,251 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Collects the responses of one connection and sends them with as few
+ * system calls as possible.
+ *
+ * Key Concepts Demonstrated:
+ * - Gathering write: SocketChannel.write(ByteBuffer[]) sends several separate
+ *   buffers (a header block, a file body, the next pipelined response...) in
+ *   one writev() system call, without first copying them into one array
+ * - Response queue: pieces are queued in the order they are written and only
+ *   reach the network on flush(), so pipelined responses leave together and
+ *   always in request order
+ *
+ * Cached header blocks and file bodies are queued as they are (wrapped, not
+ * copied). Sockets without a channel fall back to plain stream writes.
+ *
+ * Writes block until the client makes room, so each one reports its
+ * progress to the connection's deadline; a client that stops taking its
+ * responses is closed from outside (see RequestTimeouts). A blocking write
+ * only returns once all of it is accepted, so none is larger than
+ * SEND_CHUNK_SIZE: a slow client still shows progress regularly.
+ */
+final class ResponseWriter implements Closeable {
+    // Flush automatically once this much is queued, or this many pieces
+    static final int FLUSH_THRESHOLD = 64 * 1024;
+    static final int MAX_QUEUED_BUFFERS = 64;
+
+    // Most bytes handed to one blocking write or transferTo()
+    static final int SEND_CHUNK_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;   // null: use the stream instead
+    private final OutputStream stream;
+    private final RequestTimeouts.Deadline deadline;  // null: no send limit
+
+    private final ByteBuffer[] queue = new ByteBuffer[MAX_QUEUED_BUFFERS];
+    private int queuedCount;
+    private long queuedBytes;
+
+    // When the first flush since startResponse() went out, for the
+    // time-to-first-byte metric
+    private boolean responseStarted;
+    private long firstWriteNanos;
+
+    ResponseWriter(Socket socket) throws IOException {
+        this(socket, null);
+    }
+
+    /**
+     * A writer that reports the progress of every write to the deadline, so
+     * a client that stops taking its responses can be cut off
+     */
+    ResponseWriter(Socket socket, RequestTimeouts.Deadline deadline) throws IOException {
+        this.channel = socket.getChannel();
+        this.stream = channel == null ? socket.getOutputStream() : null;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Queue bytes to be sent. The array is not copied, so it must not change
+     * until the next flush (cached headers and bodies never change).
+     */
+    void write(byte[] bytes) throws IOException {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Queue part of an array, such as one range of a cached file body
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (queuedCount == queue.length) {
+            flush();
+        }
+        queue[queuedCount++] = ByteBuffer.wrap(bytes, offset, length);
+        queuedBytes += length;
+        if (queuedBytes >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    /** Bytes queued and not yet sent */
+    long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * A new response begins: the next flush marks its first byte
+     */
+    void startResponse() {
+        responseStarted = false;
+    }
+
+    /**
+     * When the first bytes written since startResponse() were handed to the
+     * network, or the given time if everything is still queued
+     */
+    long firstWriteNanos(long ifNotYet) {
+        return responseStarted ? firstWriteNanos : ifNotYet;
+    }
+
+    /**
+     * Queue text that only contains ASCII characters (status lines, headers)
+     */
+    void writeAscii(String text) throws IOException {
+        write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Send length bytes of a file, starting at position.
+     *
+     * Small ranges are read into memory and queued, so they leave together
+     * with their headers. Larger ones are sent with zero-copy transferTo()
+     * after everything queued before them.
+     */
+    void writeFile(Path path, long position, long length) throws IOException {
+        try (FileChannel file = FileChannel.open(path)) {
+            if (channel != null && length >= FileTransfer.ZERO_COPY_THRESHOLD) {
+                flush();
+                startSend();
+                try {
+                    for (long end = position + length; position < end; position += SEND_CHUNK_SIZE) {
+                        long chunk = Math.min(SEND_CHUNK_SIZE, end - position);
+                        FileTransfer.transfer(file, position, chunk, channel);
+                        sent(chunk);
+                    }
+                } finally {
+                    endSend();
+                }
+            } else if (length < FileTransfer.ZERO_COPY_THRESHOLD) {
+                byte[] bytes = new byte[(int) length];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File truncated while sending");
+                    }
+                }
+                write(bytes);
+            } else {
+                flush();
+                startSend();
+                try {
+                    for (long end = position + length; position < end; position += SEND_CHUNK_SIZE) {
+                        long chunk = Math.min(SEND_CHUNK_SIZE, end - position);
+                        FileTransfer.copy(file, position, chunk, stream);
+                        sent(chunk);
+                    }
+                } finally {
+                    endSend();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send everything queued so far, in order
+     */
+    void flush() throws IOException {
+        if (queuedCount == 0) {
+            return;
+        }
+        startSend();
+        try {
+            if (channel != null) {
+                // A blocking gathering write may still stop part way; repeat until done
+                int first = 0;
+                while (first < queuedCount) {
+                    sent(writeChunk(first));
+                    while (first < queuedCount && !queue[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < queuedCount; i++) {
+                    ByteBuffer buffer = queue[i];
+                    while (buffer.hasRemaining()) {
+                        int chunk = Math.min(SEND_CHUNK_SIZE, buffer.remaining());
+                        stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), chunk);
+                        buffer.position(buffer.position() + chunk);
+                        sent(chunk);
+                    }
+                }
+                stream.flush();
+            }
+        } finally {
+            endSend();
+        }
+        if (!responseStarted) {
+            responseStarted = true;
+            firstWriteNanos = System.nanoTime();
+        }
+        java.util.Arrays.fill(queue, 0, queuedCount, null);
+        queuedCount = 0;
+        queuedBytes = 0;
+    }
+
+    /**
+     * One gathering write of at most SEND_CHUNK_SIZE bytes, starting at
+     * queue[first]. The last buffer included is cut short for the write;
+     * every queued buffer is our own wrapper, so its limit may change.
+     */
+    private long writeChunk(int first) throws IOException {
+        int end = first;
+        long size = 0;
+        while (end < queuedCount && size < SEND_CHUNK_SIZE) {
+            size += queue[end++].remaining();
+        }
+        ByteBuffer last = queue[end - 1];
+        int limit = last.limit();
+        if (size > SEND_CHUNK_SIZE) {
+            last.limit(limit - (int) (size - SEND_CHUNK_SIZE));
+        }
+        try {
+            return channel.write(queue, first, end - first);
+        } finally {
+            last.limit(limit);
+        }
+    }
+
+    private void startSend() {
+        if (deadline != null) {
+            deadline.startSend();
+        }
+    }
+
+    private void sent(long count) {
+        if (deadline != null) {
+            deadline.sent(count);
+        }
+    }
+
+    private void endSend() {
+        if (deadline != null) {
+            deadline.endSend();
+        }
+    }
+
+    /**
+     * Send whatever is still queued. The socket itself is closed by its owner.
+     */
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,352 @@
+import java.util.*;
+
+/**
+ * Startup options for the web server.
+ *
+ * Command line format:
+ *   java WebServer <port> [--option=value ...]
+ *
+ * The port is always the first argument. Every other setting is optional
+ * and falls back to a sensible default, so "java WebServer 5555" keeps
+ * working exactly as before.
+ */
+final class ServerConfig {
+    static final int DEFAULT_WORKER_THREADS = 32;
+    static final int DEFAULT_QUEUE_DEPTH = 128;
+    static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    static final int DEFAULT_BACKLOG = 1024;
+    static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5;
+    static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+    static final int DEFAULT_CACHE_SIZE_MB = 64;
+
+    /** Which kind of thread runs each HttpRequest */
+    enum ThreadMode { PLATFORM, VIRTUAL }
+
+    /** Blocking ServerSocket + threads, or non-blocking NIO with a Selector */
+    enum Engine { BLOCKING, NIO }
+
+    int port;
+
+    // Listening sockets: how many threads call accept(), and how many
+    // not-yet-accepted connections the kernel may queue per socket
+    int acceptors = 1;
+    int backlog = DEFAULT_BACKLOG;
+
+    // Worker pool: a fixed number of threads plus a bounded queue of
+    // accepted connections waiting for a free thread
+    int workerThreads = DEFAULT_WORKER_THREADS;
+    int queueDepth = DEFAULT_QUEUE_DEPTH;
+
+    // Virtual thread mode: one virtual thread per connection, capped at
+    // maxConnections connections served at the same time (the NIO engine
+    // uses the same cap)
+    ThreadMode threadMode = ThreadMode.PLATFORM;
+    int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // NIO engine: a few event loop threads, each serving many connections
+    Engine engine = Engine.BLOCKING;
+    int eventLoops = defaultEventLoops();
+
+    // HTTP/1.1 persistent connections: how long (in seconds) an idle
+    // connection waits for its next request (0 = close after every response),
+    // and how many requests one connection may carry
+    int keepAliveTimeoutSeconds = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    int maxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+
+    // Slow clients (see RequestTimeouts): seconds to receive a whole request
+    // head, the slowest inbound byte rate tolerated (0 = any), and the
+    // largest head accepted, in bytes
+    int headerTimeoutSeconds = RequestTimeouts.DEFAULT_HEADER_TIMEOUT;
+    int minRate = RequestTimeouts.DEFAULT_MIN_RATE;
+    int sendTimeoutSeconds = RequestTimeouts.DEFAULT_SEND_TIMEOUT;
+    int maxHeaderSize = RequestTimeouts.DEFAULT_MAX_HEADER_SIZE;
+
+    // Admission control (see AdmissionControl): requests processed at once
+    // (0 = no limit), and the queue delay (in milliseconds) above which a
+    // worker queue that never drains within one interval sheds load with 503
+    // (target 0 = no check). The queue check is opt-in: an idle keep-alive
+    // connection holds its worker for a while, so bursts queue briefly
+    // even on a healthy server
+    int maxInFlight = 0;
+    int queueTargetMillis = 0;
+    int queueIntervalMillis = AdmissionControl.DEFAULT_QUEUE_INTERVAL_MILLIS;
+
+    // Per-client-IP rate limit (see RateLimiter): requests per second
+    // (0 = off), how many may come at once (0 = one second's worth), and
+    // how many clients' buckets are kept
+    int rateLimit = 0;
+    int rateBurst = 0;
+    int rateLimitTable = RateLimiter.DEFAULT_TABLE_SIZE;
+
+    // In-memory content cache budget in megabytes, 0 = no cache
+    int cacheSizeMegabytes = DEFAULT_CACHE_SIZE_MB;
+
+    // On-the-fly compression of cached text files without precompressed
+    // siblings: smallest file worth compressing, which MIME types, and the
+    // share of one core (in percent) that compression may use
+    int compressMinSize = Compressor.DEFAULT_MIN_SIZE;
+    Set<String> compressTypes = Compressor.parseTypes(Compressor.DEFAULT_TYPES);
+    int compressBudgetPercent = Compressor.DEFAULT_BUDGET_PERCENT;
+
+    // Access log: where to ("stdout", a file name, or "off"), which line
+    // format, how many entries may wait for the writer thread, and what a
+    // request does when that many are waiting
+    String accessLog = "stdout";
+    AccessLog.Format accessLogFormat = AccessLog.Format.COMMON;
+    int accessLogBufferSize = AccessLog.DEFAULT_BUFFER_SIZE;
+    AccessLog.OverflowPolicy accessLogPolicy = AccessLog.OverflowPolicy.DROP;
+
+    // Shutdown (see GracefulShutdown): seconds that requests in progress
+    // get to finish before their connections are cut off
+    int drainTimeoutSeconds = GracefulShutdown.DEFAULT_DRAIN_TIMEOUT;
+
+    // How often (in seconds) to print the pool gauges, 0 = never
+    int statsIntervalSeconds = 0;
+
+    /**
+     * Parse the command line arguments.
+     *
+     * @throws IllegalArgumentException with a user-facing message when an
+     *         argument is missing or invalid
+     */
+    static ServerConfig parse(String[] argv) {
+        if (argv.length == 0) {
+            throw new IllegalArgumentException("Missing port number");
+        }
+
+        ServerConfig config = new ServerConfig();
+        config.port = parseInt("port number", argv[0]);
+        if (config.port < 1024 || config.port > 65535) {
+            throw new IllegalArgumentException("Port must be between 1024 and 65535");
+        }
+
+        for (int i = 1; i < argv.length; i++) {
+            String arg = argv[i];
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "acceptors":
+                    config.acceptors = parsePositive(name, value);
+                    break;
+                case "backlog":
+                    config.backlog = parsePositive(name, value);
+                    break;
+                case "workers":
+                    config.workerThreads = parsePositive(name, value);
+                    break;
+                case "queue":
+                    config.queueDepth = parsePositive(name, value);
+                    break;
+                case "threads":
+                    config.threadMode = parseThreadMode(value);
+                    break;
+                case "max-connections":
+                    config.maxConnections = parsePositive(name, value);
+                    break;
+                case "engine":
+                    config.engine = parseEngine(value);
+                    break;
+                case "event-loops":
+                    config.eventLoops = parsePositive(name, value);
+                    break;
+                case "keep-alive-timeout":
+                    config.keepAliveTimeoutSeconds = parseNonNegative(name, value);
+                    break;
+                case "max-keep-alive-requests":
+                    config.maxKeepAliveRequests = parsePositive(name, value);
+                    break;
+                case "header-timeout":
+                    config.headerTimeoutSeconds = parsePositive(name, value);
+                    break;
+                case "min-rate":
+                    config.minRate = parseNonNegative(name, value);
+                    break;
+                case "send-timeout":
+                    config.sendTimeoutSeconds = parseNonNegative(name, value);
+                    break;
+                case "max-header-size":
+                    config.maxHeaderSize = parsePositive(name, value);
+                    if (config.maxHeaderSize < 256) {
+                        throw new IllegalArgumentException("--max-header-size must be at least 256");
+                    }
+                    break;
+                case "max-in-flight":
+                    config.maxInFlight = parseNonNegative(name, value);
+                    break;
+                case "queue-target":
+                    config.queueTargetMillis = parseNonNegative(name, value);
+                    break;
+                case "queue-interval":
+                    config.queueIntervalMillis = parsePositive(name, value);
+                    break;
+                case "rate-limit":
+                    config.rateLimit = parseNonNegative(name, value);
+                    break;
+                case "rate-burst":
+                    config.rateBurst = parseNonNegative(name, value);
+                    break;
+                case "rate-limit-table":
+                    config.rateLimitTable = parsePositive(name, value);
+                    break;
+                case "cache-size":
+                    config.cacheSizeMegabytes = parseNonNegative(name, value);
+                    break;
+                case "compress-min-size":
+                    config.compressMinSize = parseNonNegative(name, value);
+                    break;
+                case "compress-types":
+                    config.compressTypes = Compressor.parseTypes(value);
+                    break;
+                case "compress-budget":
+                    config.compressBudgetPercent = parseNonNegative(name, value);
+                    break;
+                case "access-log":
+                    if (value.isEmpty()) {
+                        throw new IllegalArgumentException("--access-log needs stdout, off or a file name");
+                    }
+                    config.accessLog = value;
+                    break;
+                case "access-log-format":
+                    config.accessLogFormat = parseAccessLogFormat(value);
+                    break;
+                case "access-log-buffer":
+                    config.accessLogBufferSize = parsePositive(name, value);
+                    break;
+                case "access-log-when-full":
+                    config.accessLogPolicy = parseOverflowPolicy(value);
+                    break;
+                case "drain-timeout":
+                    config.drainTimeoutSeconds = parseNonNegative(name, value);
+                    break;
+                case "stats-interval":
+                    config.statsIntervalSeconds = parseNonNegative(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Print the usage message, including every supported option
+     */
+    static void printUsage() {
+        System.err.println("Usage: java WebServer <port> [options]");
+        System.err.println("Example: java WebServer 5555");
+        System.err.println();
+        System.err.println("Options:");
+        System.err.println("  --acceptors=N                  Threads calling accept(), SO_REUSEPORT sockets where supported (default 1)");
+        System.err.println("  --backlog=N                    Pending connections queued by the kernel per socket (default " + DEFAULT_BACKLOG + ")");
+        System.err.println("  --workers=N                    Worker threads (default " + DEFAULT_WORKER_THREADS + ")");
+        System.err.println("  --queue=N                      Connections waiting for a worker (default " + DEFAULT_QUEUE_DEPTH + ")");
+        System.err.println("  --threads=MODE                 platform (worker pool) or virtual (Java 21+, default platform)");
+        System.err.println("  --max-connections=N            Concurrent connections in virtual or nio mode (default " + DEFAULT_MAX_CONNECTIONS + ")");
+        System.err.println("  --engine=ENGINE                blocking (ServerSocket + threads) or nio (Selector, default blocking)");
+        System.err.println("  --event-loops=N                Event loop threads for the nio engine (default " + defaultEventLoops() + ")");
+        System.err.println("  --keep-alive-timeout=S         Idle seconds before a persistent connection is closed (default " + DEFAULT_KEEP_ALIVE_TIMEOUT + ", 0 = off)");
+        System.err.println("  --max-keep-alive-requests=N    Requests served per connection (default " + DEFAULT_MAX_KEEP_ALIVE_REQUESTS + ")");
+        System.err.println("  --header-timeout=S             Seconds to receive a whole request header (default " + RequestTimeouts.DEFAULT_HEADER_TIMEOUT + ")");
+        System.err.println("  --min-rate=BYTES               Slowest request header upload and response download in bytes/s (default " + RequestTimeouts.DEFAULT_MIN_RATE + ", 0 = any)");
+        System.err.println("  --send-timeout=S               Longest a client may leave a response untaken (default " + RequestTimeouts.DEFAULT_SEND_TIMEOUT + ", 0 = no limit)");
+        System.err.println("  --max-header-size=BYTES        Largest request header, beyond this 431 (default " + RequestTimeouts.DEFAULT_MAX_HEADER_SIZE + ")");
+        System.err.println("  --max-in-flight=N              Requests processed at once, beyond this clients get 503 (default 0 = no limit)");
+        System.err.println("  --queue-target=MS              Worker queue delay that sheds load when it persists (default 0 = off)");
+        System.err.println("  --queue-interval=MS            How long the queue delay must persist (default " + AdmissionControl.DEFAULT_QUEUE_INTERVAL_MILLIS + ")");
+        System.err.println("  --rate-limit=N                 Requests per second per client IP, beyond this 429 (default 0 = off)");
+        System.err.println("  --rate-burst=N                 Requests a client IP may send at once (default 0 = one second's worth)");
+        System.err.println("  --rate-limit-table=N           Client IPs tracked by the rate limiter (default " + RateLimiter.DEFAULT_TABLE_SIZE + ")");
+        System.err.println("  --cache-size=MB                Memory for cached files (default " + DEFAULT_CACHE_SIZE_MB + ", 0 = off)");
+        System.err.println("  --compress-min-size=BYTES      Smallest file compressed on the fly (default " + Compressor.DEFAULT_MIN_SIZE + ")");
+        System.err.println("  --compress-types=LIST          MIME types compressed on the fly (default " + Compressor.DEFAULT_TYPES + ")");
+        System.err.println("  --compress-budget=PERCENT      Share of one core spent compressing (default " + Compressor.DEFAULT_BUDGET_PERCENT + ", 0 = off)");
+        System.err.println("  --access-log=DEST              stdout, off or a file to append to (default stdout)");
+        System.err.println("  --access-log-format=FORMAT     common, combined or json (default common)");
+        System.err.println("  --access-log-buffer=N          Log entries waiting for the writer thread (default " + AccessLog.DEFAULT_BUFFER_SIZE + ")");
+        System.err.println("  --access-log-when-full=POLICY  drop (count lost entries) or block (wait for room, default drop)");
+        System.err.println("  --drain-timeout=S              Seconds requests in progress get to finish at shutdown (default " + GracefulShutdown.DEFAULT_DRAIN_TIMEOUT + ")");
+        System.err.println("  --stats-interval=S             Print pool gauges every S seconds (default 0 = off)");
+    }
+
+    private static ThreadMode parseThreadMode(String value) {
+        switch (value) {
+            case "platform":
+                return ThreadMode.PLATFORM;
+            case "virtual":
+                return ThreadMode.VIRTUAL;
+            default:
+                throw new IllegalArgumentException("--threads must be platform or virtual: " + value);
+        }
+    }
+
+    private static Engine parseEngine(String value) {
+        switch (value) {
+            case "blocking":
+                return Engine.BLOCKING;
+            case "nio":
+                return Engine.NIO;
+            default:
+                throw new IllegalArgumentException("--engine must be blocking or nio: " + value);
+        }
+    }
+
+    private static AccessLog.Format parseAccessLogFormat(String value) {
+        switch (value) {
+            case "common":
+                return AccessLog.Format.COMMON;
+            case "combined":
+                return AccessLog.Format.COMBINED;
+            case "json":
+                return AccessLog.Format.JSON;
+            default:
+                throw new IllegalArgumentException("--access-log-format must be common, combined or json: " + value);
+        }
+    }
+
+    private static AccessLog.OverflowPolicy parseOverflowPolicy(String value) {
+        switch (value) {
+            case "drop":
+                return AccessLog.OverflowPolicy.DROP;
+            case "block":
+                return AccessLog.OverflowPolicy.BLOCK;
+            default:
+                throw new IllegalArgumentException("--access-log-when-full must be drop or block: " + value);
+        }
+    }
+
+    /**
+     * One event loop per two cores, at least one and at most four
+     */
+    private static int defaultEventLoops() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static int parsePositive(String name, String value) {
+        int number = parseInt("--" + name, value);
+        if (number < 1) {
+            throw new IllegalArgumentException("--" + name + " must be at least 1");
+        }
+        return number;
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        int number = parseInt("--" + name, value);
+        if (number < 0) {
+            throw new IllegalArgumentException("--" + name + " must not be negative");
+        }
+        return number;
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * The services shared by every connection: the startup options plus the
+ * long-lived objects built from them (worker pool, content cache, ...).
+ *
+ * WebServer creates one context at startup and hands it to each HttpRequest,
+ * so adding a shared service does not change every constructor on the way.
+ */
+final class ServerContext {
+    // Connection header of a response after which the connection is closed
+    static final byte[] CONNECTION_CLOSE =
+        ("Connection: close" + HttpRequest.CRLF).getBytes(StandardCharsets.US_ASCII);
+
+    final ServerConfig config;
+    final WorkerPool workerPool;      // null for the nio engine
+    final ContentCache contentCache;
+    final Metrics metrics = new Metrics();
+    final AdmissionControl admission;
+    final RateLimiter rateLimiter;
+    final RequestTimeouts timeouts;
+    final ConnectionTracker connections = new ConnectionTracker();
+
+    // Set by start(); null when access logging is off
+    private AccessLog accessLog;
+
+    // Connection headers of a response after which the connection stays open.
+    // They only depend on the startup options, so they are encoded once.
+    private final byte[] keepAliveHeaders;
+
+    ServerContext(ServerConfig config, WorkerPool workerPool) {
+        this.config = config;
+        this.workerPool = workerPool;
+        this.admission = new AdmissionControl(config);
+        this.timeouts = new RequestTimeouts(config);
+        this.rateLimiter = new RateLimiter(config.rateLimit,
+            config.rateBurst > 0 ? config.rateBurst : config.rateLimit, config.rateLimitTable);
+        this.keepAliveHeaders = (
+            "Connection: keep-alive" + HttpRequest.CRLF +
+            "Keep-Alive: timeout=" + config.keepAliveTimeoutSeconds + HttpRequest.CRLF
+        ).getBytes(StandardCharsets.US_ASCII);
+        Compressor compressor = new Compressor(config.compressMinSize, config.compressTypes, config.compressBudgetPercent);
+        this.contentCache = new ContentCache(config.cacheSizeMegabytes * 1024L * 1024L, keepAliveHeaders, compressor);
+    }
+
+    /**
+     * The Connection (and Keep-Alive) response headers, telling the client
+     * whether it may send another request on this connection
+     */
+    byte[] connectionHeaders(boolean keepAlive) {
+        return keepAlive ? keepAliveHeaders : CONNECTION_CLOSE;
+    }
+
+    /**
+     * Start the background services: the access log writer, the watcher
+     * that keeps the content cache up to date and, for the blocking engine,
+     * the watchdog that closes connections not taking their responses
+     *
+     * @throws IOException if the access log file cannot be opened
+     */
+    void start() throws IOException {
+        try {
+            accessLog = AccessLog.start(config);
+        } catch (IOException e) {
+            throw new IOException("Cannot open access log " + config.accessLog + ": " + e.getMessage(), e);
+        }
+        if (workerPool != null) {
+            connections.startWatchdog();
+        }
+        if (contentCache.isEnabled()) {
+            try {
+                ContentWatcher.start(Paths.get(HttpRequest.WWW_ROOT), contentCache);
+            } catch (IOException e) {
+                // Without a watcher, changed files would be served stale forever
+                System.err.println("Cannot watch " + HttpRequest.WWW_ROOT + " for changes (" +
+                    e.getMessage() + "), content cache disabled");
+                contentCache.disable();
+            }
+        }
+    }
+
+    /**
+     * Stop the background services: write out what the access log still
+     * holds. Called last during a shutdown, once no more requests will be
+     * logged.
+     */
+    void stop() {
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    /**
+     * Write one response to the access log
+     *
+     * @param requestLine the request line, or null if none could be read
+     * @param bytes body bytes sent
+     * @param headers the request headers, or null if none could be read
+     */
+    void logAccess(String clientIP, String requestLine, int status, long bytes, RequestHeaders headers) {
+        if (accessLog == null) {
+            return;
+        }
+        String referer = null;
+        String userAgent = null;
+        if (headers != null && accessLog.wantsHeaders()) {
+            referer = headers.get(HeaderName.REFERER);
+            userAgent = headers.get(HeaderName.USER_AGENT);
+        }
+        accessLog.log(clientIP, requestLine, status, bytes, referer, userAgent);
+    }
+
+    /**
+     * One-line summary of all gauges, used for periodic logging
+     */
+    String describe() {
+        String gauges = timeouts.describe() + " " + admission.describe() + " " + contentCache.describe();
+        if (rateLimiter.isEnabled()) {
+            gauges = rateLimiter.describe() + " " + gauges;
+        }
+        if (accessLog != null) {
+            gauges = gauges + " " + accessLog.describe();
+        }
+        if (workerPool != null) {
+            gauges = workerPool.describe() + " " + gauges;
+        }
+        return gauges;
+    }
+}
@@ -0,0 +1,92 @@
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for the phases of serving a request.
+ *
+ * Key Concepts Demonstrated:
+ * - JFR: a profiler built into the JVM, cheap enough for production. Start
+ *   it with -XX:StartFlightRecording=duration=60s,filename=server.jfr (or
+ *   jcmd <pid> JFR.start) and open the file in JDK Mission Control, or print
+ *   it with: jfr print --events webserver.FileLookup server.jfr
+ * - Custom events: an event is an object with a start and end time plus
+ *   fields. new, begin(), end() and commit() cost close to nothing when no
+ *   recording is running: commit() checks a flag, and the JIT removes the
+ *   allocation of an event that never leaves its method. Fields that take
+ *   work to compute (like converting a path to a String) are only filled in
+ *   after shouldCommit() returns true.
+ *
+ * Stack traces are off: a stack per request would cost more than the events.
+ */
+final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("webserver.Accept")
+    @Label("Accept")
+    @Category("Web Server")
+    @Description("Handing a newly accepted connection to a worker or event loop")
+    @StackTrace(false)
+    static final class Accept extends Event {
+        @Label("Client Address")
+        String clientAddress;
+    }
+
+    @Name("webserver.RequestParse")
+    @Label("Request Parse")
+    @Category("Web Server")
+    @Description("Parsing the request line and headers once the whole head has arrived")
+    @StackTrace(false)
+    static final class RequestParse extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Head Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("webserver.FileLookup")
+    @Label("File Lookup")
+    @Category("Web Server")
+    @Description("Resolving the requested path and finding the file in the content cache or on disk")
+    @StackTrace(false)
+    static final class FileLookup extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("webserver.HeaderWrite")
+    @Label("Header Write")
+    @Category("Web Server")
+    @Description("Queueing a response header block")
+    @StackTrace(false)
+    static final class HeaderWrite extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Header Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("webserver.BodyTransfer")
+    @Label("Body Transfer")
+    @Category("Web Server")
+    @Description("Sending queued responses or a file body to the socket")
+    @StackTrace(false)
+    static final class BodyTransfer extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+/**
+ * Validators (ETag and Last-Modified) and conditional GET.
+ *
+ * A browser that already has a file sends what it knows about its copy:
+ *   If-None-Match: "3f2a..."                         (the ETag it got)
+ *   If-Modified-Since: Tue, 14 Oct 2025 09:30:00 GMT (the Last-Modified it got)
+ * If the file has not changed, the server answers "304 Not Modified" with no
+ * body, and the browser uses its cached copy. For repeat visitors that removes
+ * most of the bytes on the wire.
+ *
+ * - Strong ETag: a hash of the content. Two files with the same ETag have
+ *   the same bytes. The hash is computed once, when a file enters the
+ *   content cache.
+ * - Weak ETag (W/"..."): built from size and modification time. Used when
+ *   the cache is disabled, so no request ever has to hash a whole file.
+ */
+final class Validators {
+    // HTTP-date, like "Sun, 06 Nov 1994 08:49:37 GMT" (always two-digit days)
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // Only the first 128 bits of the SHA-256 hash go into the ETag
+    private static final int ETAG_HASH_BYTES = 16;
+
+    private Validators() {
+    }
+
+    /**
+     * A strong ETag for content that is in memory
+     */
+    static String strongETag(byte[] content) {
+        MessageDigest digest = sha256();
+        digest.update(content);
+        return quote(digest.digest());
+    }
+
+    /**
+     * A strong ETag for a file, read from disk in chunks (for files too large
+     * to keep in memory)
+     */
+    static String strongETag(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer chunk = ByteBuffer.allocate(FileTransfer.COPY_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(chunk) >= 0) {
+                chunk.flip();
+                digest.update(chunk);
+                chunk.clear();
+            }
+        }
+        return quote(digest.digest());
+    }
+
+    /**
+     * A weak ETag from a file's size and modification time
+     */
+    static String weakETag(long length, long lastModifiedMillis) {
+        return "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+    }
+
+    /**
+     * Format a time as an HTTP-date. HTTP dates have whole seconds.
+     */
+    static String formatDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Can the client's copy be used? Implements the order RFC 9110 gives:
+     * If-None-Match decides when present; If-Modified-Since is only looked
+     * at without it.
+     *
+     * @return true to answer 304 Not Modified
+     */
+    static boolean notModified(RequestHeaders headers, String etag, long lastModifiedMillis) {
+        String ifNoneMatch = headers.get(HeaderName.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = headers.get(HeaderName.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().getEpochSecond();
+                return lastModifiedMillis / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false;  // An invalid date is ignored
+            }
+        }
+        return false;
+    }
+
+    /**
+     * May a Range request be answered with part of the file? With If-Range
+     * the client says "only if the file is still this version"; otherwise it
+     * wants the whole new file rather than a piece that does not fit its copy.
+     * If-Range uses strong comparison, so a weak ETag never matches.
+     */
+    static boolean ifRangeMatches(RequestHeaders headers, String etag, long lastModifiedMillis) {
+        String ifRange = headers.get(HeaderName.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME)
+                .toInstant().getEpochSecond();
+            return lastModifiedMillis / 1000 == date;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Does an If-None-Match list ("*" or "etag1", W/"etag2", ...) match our
+     * ETag? If-None-Match uses weak comparison: W/ prefixes are ignored.
+     */
+    static boolean matchesAny(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String opaque = withoutWeakPrefix(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            if (withoutWeakPrefix(candidate.trim()).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String withoutWeakPrefix(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String quote(byte[] hash) {
+        StringBuilder etag = new StringBuilder(ETAG_HASH_BYTES * 2 + 2).append('"');
+        for (int i = 0; i < ETAG_HASH_BYTES; i++) {
+            etag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+            etag.append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return etag.append('"').toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required on every Java platform", e);
+        }
+    }
+}
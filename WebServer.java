@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.function.*;
 
 /**
  * A simple web server implementation to demonstrate socket programming concepts.
@@ -9,11 +10,12 @@ import java.util.*;
  * - ServerSocket: Listens for incoming TCP connections on a specified port
  * - Socket: Represents a TCP connection to a client
  * - Multi-threading: Handles multiple client requests concurrently
+ *   using a fixed-size worker pool (see WorkerPool)
  * 
  * How it works:
  * 1. Create a ServerSocket bound to a port
- * 2. Accept incoming client connections (blocking operation)
- * 3. For each client, spawn a new thread to handle the request
+ * 2. Accept incoming client connections (blocking operation, see Acceptor)
+ * 3. For each client, hand the request to a bounded pool of worker threads
  * 4. The main thread immediately returns to accept() to wait for the next client
  * 
  * This allows the server to serve multiple clients simultaneously.
@@ -22,66 +24,79 @@ public final class WebServer {
     // Volatile flag to allow graceful shutdown
     private static volatile boolean running = true;
     
+    // Drains the server at JVM exit or on shutdown() (see GracefulShutdown)
+    private static volatile GracefulShutdown gracefulShutdown;
+    
     public static void main(String argv[]) throws Exception {
-        // Get the port number from the command line
-        if (argv.length == 0) {
-            System.err.println("Usage: java WebServer <port>");
-            System.err.println("Example: java WebServer 5555");
+        // Get the port number (and optional settings) from the command line
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.parse(argv);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            ServerConfig.printUsage();
             System.exit(1);
         }
+        int port = config.port;
         
-        int port = 0;
+        // The non-blocking engine has its own accept loop and no worker threads
+        if (config.engine == ServerConfig.Engine.NIO) {
+            ServerContext context = new ServerContext(config, null);
+            startContext(context);
+            runNioEngine(context);
+            return;
+        }
+        
+        // A bounded pool of worker threads (or capped virtual threads)
+        // replaces one-platform-thread-per-connection
+        WorkerPool workerPool = null;
         try {
-            port = Integer.parseInt(argv[0]);
-            if (port < 1024 || port > 65535) {
-                System.err.println("Port must be between 1024 and 65535");
-                System.exit(1);
-            }
-        } catch (NumberFormatException e) {
-            System.err.println("Invalid port number: " + argv[0]);
+            workerPool = WorkerPool.create(config);
+        } catch (UnsupportedOperationException e) {
+            System.err.println("Error: " + e.getMessage());
             System.exit(1);
         }
+        ServerContext context = new ServerContext(config, workerPool);
+        startContext(context);
         
-        ServerSocket serverSocket = null;
+        List<ServerSocket> serverSockets = new ArrayList<>();
         try {
-            // Step 1: Create a ServerSocket
+            // Step 1: Create the listening ServerSocket(s)
             // This socket listens for incoming TCP connection requests on the specified port
-            serverSocket = new ServerSocket(port);
-            System.out.println("WebServer started on port " + port);
+            // With several acceptors and SO_REUSEPORT, each acceptor gets its own
+            // socket on the same port and the kernel balances connections between them
+            boolean reusePort = config.acceptors > 1 && Acceptor.reusePortSupported();
+            int socketCount = reusePort ? config.acceptors : 1;
+            for (int i = 0; i < socketCount; i++) {
+                serverSockets.add(Acceptor.openServerSocket(port, config.backlog, reusePort));
+            }
+            
+            // Step 2: Create the acceptors; without SO_REUSEPORT they share one socket
+            Acceptor[] acceptors = new Acceptor[config.acceptors];
+            for (int i = 0; i < acceptors.length; i++) {
+                acceptors[i] = new Acceptor(i, serverSockets.get(i % socketCount), context);
+            }
+            startStatsReporter(() -> context.describe() + describeAcceptors(acceptors), config.statsIntervalSeconds);
+            
+            // On Ctrl+C or SIGTERM: stop accepting, let requests in progress finish
+            gracefulShutdown = GracefulShutdown.install(context, serverSockets);
+            
+            System.out.println("WebServer started on port " + port +
+                " (" + config.threadMode.name().toLowerCase() + " threads, " +
+                acceptors.length + (acceptors.length == 1 ? " acceptor" : " acceptors") +
+                (reusePort ? ", SO_REUSEPORT" : "") + ")");
             System.out.println("Open browser: http://localhost:" + port + "/index.html");
             System.out.println("Press Ctrl+C to stop the server");
             System.out.println("---------------------------------------------------");
             
-            // Step 2: Process HTTP service requests in an infinite loop
-            while (running) {
-                try {
-                    // socket.accept() blocks until a client connects
-                    // When a client connects, it returns a Socket object representing that connection
-                    Socket clientConnection = serverSocket.accept();
-                    
-                    // Get client IP for logging
-                    String clientIP = clientConnection.getInetAddress().getHostAddress();
-                    
-                    // Step 3: Create an HttpRequest object to handle this specific request
-                    // Pass the client socket to the request handler
-                    HttpRequest request = new HttpRequest(clientConnection, clientIP);
-                    
-                    // Step 4: Create a new thread to process the request
-                    // This is crucial because accept() is blocking
-                    // If we processed requests sequentially, the server would hang
-                    // while one client was being served
-                    Thread thread = new Thread(request);
-                    
-                    // Step 5: Start the thread
-                    // The thread will run the run() method of HttpRequest
-                    thread.start();
-                    
-                } catch (SocketException e) {
-                    if (running) {
-                        System.err.println("Socket error: " + e.getMessage());
-                    }
-                }
+            // Step 3: Process HTTP service requests in an infinite loop
+            // Extra acceptors get their own threads; the main thread runs the first one
+            for (int i = 1; i < acceptors.length; i++) {
+                Thread thread = new Thread(acceptors[i], "acceptor-" + i);
+                thread.setDaemon(true);
+                thread.start();
             }
+            acceptors[0].run();
             
         } catch (BindException e) {
             System.err.println("Error: Port " + port + " is already in use");
@@ -90,21 +105,133 @@ public final class WebServer {
             System.err.println("Error creating ServerSocket: " + e.getMessage());
             System.exit(1);
         } finally {
-            if (serverSocket != null && !serverSocket.isClosed()) {
+            // After a shutdown the hook drains the pool and closes the sockets
+            if (isRunning()) {
+                stopWorkers(workerPool, serverSockets);
+            }
+        }
+    }
+    
+    /**
+     * Stop without draining, when the server fails to start or accept
+     */
+    private static void stopWorkers(WorkerPool workerPool, List<ServerSocket> serverSockets) {
+        workerPool.shutdown();
+        boolean closed = false;
+        for (ServerSocket serverSocket : serverSockets) {
+            if (!serverSocket.isClosed()) {
                 try {
                     serverSocket.close();
-                    System.out.println("\nWebServer stopped");
+                    closed = true;
                 } catch (IOException e) {
                     System.err.println("Error closing ServerSocket: " + e.getMessage());
                 }
             }
         }
+        if (closed) {
+            System.out.println("\nWebServer stopped");
+        }
+    }
+    
+    /**
+     * Start the shared background services, or exit if that fails
+     */
+    private static void startContext(ServerContext context) {
+        try {
+            context.start();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Per-acceptor totals and accept rates, to check that the kernel
+     * spreads connections evenly across the listening sockets
+     */
+    private static String describeAcceptors(Acceptor[] acceptors) {
+        StringBuilder gauges = new StringBuilder();
+        for (Acceptor acceptor : acceptors) {
+            gauges.append(" acceptor-").append(acceptor.id())
+                .append("=").append(acceptor.acceptedCount())
+                .append(String.format(" (%.1f/s)", acceptor.sampleAcceptRate()));
+        }
+        return gauges.toString();
     }
     
     /**
-     * Gracefully shut down the server (can be called from other threads)
+     * Run the non-blocking NIO engine (--engine=nio) on the main thread
+     */
+    private static void runNioEngine(ServerContext context) {
+        ServerConfig config = context.config;
+        NioServer server = new NioServer(context);
+        try {
+            server.bind();
+        } catch (BindException e) {
+            System.err.println("Error: Port " + config.port + " is already in use");
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error creating ServerSocketChannel: " + e.getMessage());
+            System.exit(1);
+        }
+        startStatsReporter(() -> server.describe() + " " + context.describe(), config.statsIntervalSeconds);
+
+        // Only once the port is ours: a server that never started has nothing to drain
+        gracefulShutdown = GracefulShutdown.install(context, server);
+        try {
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Error accepting connections: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Periodically print the engine gauges (pool size, queue length,
+     * rejections, cache counters) so an operator can watch the server under load
+     */
+    private static void startStatsReporter(Supplier<String> gauges, int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("[stats] " + gauges.get());
+            }
+        }, "stats-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+    
+    /**
+     * Whether the server should keep accepting connections
+     */
+    static boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Gracefully shut down the server (can be called from other threads):
+     * stop accepting and wait for the requests in progress, up to
+     * --drain-timeout seconds (see GracefulShutdown)
      */
     public static void shutdown() {
+        stopRunning();
+        GracefulShutdown shutdown = gracefulShutdown;
+        if (shutdown != null) {
+            shutdown.run();
+        }
+    }
+    
+    /**
+     * From now on, finish the requests in progress but take no new ones
+     */
+    static void stopRunning() {
         running = false;
     }
 }
@@ -0,0 +1,225 @@
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs accepted connections on worker threads, in one of two modes.
+ *
+ * Platform mode (the default): a bounded pool of worker threads.
+ * - Every platform thread reserves its own stack (typically 512KB - 1MB)
+ * - A burst of clients would create thousands of threads, exhausting memory
+ *   and making the garbage collector scan thousands of stacks
+ * - Instead, a fixed number of threads take connections from a bounded queue
+ *
+ * Virtual mode (Java 21+): one virtual thread per connection.
+ * - A virtual thread is scheduled by the JVM, not the operating system, and
+ *   its stack lives on the heap, so it costs a few hundred bytes while idle
+ * - When a handler blocks on socket or file I/O, the JVM parks the virtual
+ *   thread and reuses the carrier thread for other work
+ * - This lets one server hold tens of thousands of slow clients, so the only
+ *   limit is a cap on concurrent connections
+ *
+ * In both modes a connection that does not fit (queue full, or connection
+ * cap reached) is rejected immediately with "503 Service Unavailable".
+ * A fast rejection is much kinder to clients (and to the server) than an
+ * ever-growing backlog.
+ */
+final class WorkerPool {
+    private final ExecutorService executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    // Platform mode only: the underlying pool, for the gauges
+    private final ThreadPoolExecutor threadPool;
+
+    // Virtual mode only: limits the number of connections served at once
+    private final Semaphore connectionPermits;
+    private final int maxConnections;
+
+    private WorkerPool(ExecutorService executor, ThreadPoolExecutor threadPool, int maxConnections) {
+        this.executor = executor;
+        this.threadPool = threadPool;
+        this.maxConnections = maxConnections;
+        this.connectionPermits = threadPool == null ? new Semaphore(maxConnections) : null;
+    }
+
+    /**
+     * Create the pool selected by the startup options
+     */
+    static WorkerPool create(ServerConfig config) {
+        if (config.threadMode == ServerConfig.ThreadMode.VIRTUAL) {
+            return virtual(config.maxConnections);
+        }
+        return platform(config.workerThreads, config.queueDepth);
+    }
+
+    /**
+     * A fixed number of platform threads with a bounded queue in front of them
+     */
+    static WorkerPool platform(int threads, int queueDepth) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = task -> {
+            Thread thread = new Thread(task, "worker-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        // The rejection policy is filled in below, once the pool object exists
+        RejectingHandler rejectionPolicy = new RejectingHandler();
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+            threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueDepth),
+            threadFactory,
+            rejectionPolicy);
+
+        WorkerPool pool = new WorkerPool(threadPool, threadPool, threads);
+        rejectionPolicy.pool = pool;
+        return pool;
+    }
+
+    /**
+     * One new virtual thread per connection, at most maxConnections at once
+     *
+     * @throws UnsupportedOperationException if this Java version has no virtual threads
+     */
+    static WorkerPool virtual(int maxConnections) {
+        return new WorkerPool(newVirtualThreadExecutor(), null, maxConnections);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() only exists on Java 21+.
+     * Looking it up by reflection lets the server still compile and run
+     * (in platform mode) on older versions.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                "Virtual threads require Java 21 or newer (running " +
+                System.getProperty("java.version") + ")");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Hand a request to the pool. Never blocks: the request either runs on
+     * a worker, waits in the queue, or is answered with 503.
+     */
+    void submit(HttpRequest request) {
+        if (connectionPermits == null) {
+            executor.execute(request);
+            return;
+        }
+
+        // Virtual mode: take a permit, and give it back when the request is done
+        if (!connectionPermits.tryAcquire()) {
+            reject(request);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    request.run();
+                } finally {
+                    connectionPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connectionPermits.release();
+            reject(request);
+        }
+    }
+
+    /**
+     * Runs on the accepting thread, so it must be cheap: it writes a
+     * pre-encoded 503 response and closes the connection.
+     */
+    private void reject(HttpRequest request) {
+        rejected.incrementAndGet();
+        request.sendServiceUnavailable();
+    }
+
+    /** Number of worker threads currently alive */
+    int poolSize() {
+        if (threadPool != null) {
+            return threadPool.getPoolSize();
+        }
+        return activeCount();
+    }
+
+    /** Number of worker threads currently processing a request */
+    int activeCount() {
+        if (threadPool != null) {
+            return threadPool.getActiveCount();
+        }
+        return maxConnections - connectionPermits.availablePermits();
+    }
+
+    /** Number of accepted connections waiting for a free worker */
+    int queueLength() {
+        if (threadPool != null) {
+            return threadPool.getQueue().size();
+        }
+        return 0;  // Virtual threads start immediately, nothing ever waits
+    }
+
+    /** Total number of connections rejected with 503 since startup */
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * One-line summary of the gauges, used for periodic logging
+     */
+    String describe() {
+        return (threadPool != null ? "pool=" : "virtual=") + poolSize() +
+            " active=" + activeCount() +
+            " queued=" + queueLength() +
+            " rejected=" + rejectedCount();
+    }
+
+    /**
+     * Stop taking new connections; those already queued still run
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait for every running and queued connection to finish, after shutdown()
+     *
+     * @return false if some were still running when the timeout expired
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Give up: interrupt the workers and return the connections that were
+     * still waiting in the queue, never started
+     */
+    List<HttpRequest> shutdownNow() {
+        List<HttpRequest> unstarted = new ArrayList<>();
+        for (Runnable task : executor.shutdownNow()) {
+            if (task instanceof HttpRequest) {
+                unstarted.add((HttpRequest) task);
+            }
+        }
+        return unstarted;
+    }
+
+    /**
+     * ThreadPoolExecutor calls this when both the threads and the queue are full
+     */
+    private static final class RejectingHandler implements RejectedExecutionHandler {
+        WorkerPool pool;
+
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            pool.reject((HttpRequest) task);
+        }
+    }
+}
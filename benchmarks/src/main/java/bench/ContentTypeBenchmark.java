@@ -0,0 +1,45 @@
+package bench;
+
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Cost of HttpRequest.getContentType(), which runs once for every file that
+ * enters the content cache (and for every request with the cache disabled).
+ *
+ * Each invocation looks up every file name shipped in www/ plus a few that
+ * exercise the unusual paths: upper case, several dots, no extension.
+ * Reported per invocation; divide by the name count printed at setup for
+ * the cost of one lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentTypeBenchmark {
+    private static final MethodHandle GET_CONTENT_TYPE = ServerClasses.findStatic("HttpRequest", "getContentType",
+        MethodType.methodType(String.class, String.class));
+
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        List<String> all = new ArrayList<>(WwwFixtures.fileNames());
+        all.addAll(Arrays.asList("PHOTO.JPG", "archive.tar.gz", "README", "app.min.js"));
+        names = all.toArray(new String[0]);
+        System.out.println("# " + names.length + " file names per invocation");
+    }
+
+    @Benchmark
+    public void getContentType(Blackhole blackhole) throws Throwable {
+        for (String name : names) {
+            blackhole.consume((String) GET_CONTENT_TYPE.invokeExact(name));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of the ways HttpRequest can put a file onto a socket:
+ *
+ * - copy1k:     the original loop, 1KB reads written to the socket stream
+ * - copy:       FileTransfer.copy(), 64KB positional reads through the heap
+ * - transferTo: FileTransfer.transfer(), zero-copy FileChannel.transferTo()
+ *
+ * The sink is a real loopback TCP connection whose far end is drained by a
+ * background thread, so every variant pays the actual socket costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSendBenchmark {
+    private static final MethodHandle COPY = ServerClasses.findStatic("FileTransfer", "copy",
+        MethodType.methodType(void.class, FileChannel.class, long.class, long.class, OutputStream.class));
+    private static final MethodHandle TRANSFER = ServerClasses.findStatic("FileTransfer", "transfer",
+        MethodType.methodType(void.class, FileChannel.class, long.class, long.class, WritableByteChannel.class));
+
+    @Param({"1048576", "16777216", "67108864"})
+    public int fileSize;
+
+    private Path fixture;
+    private FileChannel file;
+    private ServerSocketChannel listener;
+    private SocketChannel sender;
+    private OutputStream senderStream;
+    private SocketChannel receiver;
+    private Thread drain;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = Files.createTempFile("file-send-", ".bin");
+        byte[] chunk = new byte[1 << 20];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream out = Files.newOutputStream(fixture)) {
+            for (int written = 0; written < fileSize; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, fileSize - written));
+            }
+        }
+        file = FileChannel.open(fixture);
+
+        // A loopback connection: the server side sends, the client side is drained
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = SocketChannel.open(listener.getLocalAddress());
+        sender = listener.accept();
+        senderStream = sender.socket().getOutputStream();
+
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            try {
+                while (receiver.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // Closed at tear down
+            }
+        }, "drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        listener.close();
+        file.close();
+        Files.deleteIfExists(fixture);
+    }
+
+    @Benchmark
+    public void copy1k() throws IOException {
+        try (FileInputStream in = new FileInputStream(fixture.toFile())) {
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                senderStream.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    @Benchmark
+    public void copy() throws Throwable {
+        COPY.invokeExact(file, 0L, (long) fileSize, senderStream);
+    }
+
+    @Benchmark
+    public void transferTo() throws Throwable {
+        TRANSFER.invokeExact(file, 0L, (long) fileSize, (WritableByteChannel) sender);
+    }
+}
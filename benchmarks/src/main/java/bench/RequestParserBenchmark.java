@@ -0,0 +1,147 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Cost of reading one request head on a keep-alive connection:
+ *
+ * - bufferedReader: the original code, BufferedReader.readLine() for every
+ *   line, StringTokenizer for the request line, substring/trim/equalsIgnoreCase
+ *   to find the Connection header
+ * - requestParser:  RequestParser.readRequest() plus what HttpRequest asks
+ *   for: the target String and a keep-alive check on the Connection header
+ * - headerValue:    as requestParser, but decoding the Connection value into
+ *   a String as the original code did
+ * - parseOnly:      RequestParser.readRequest() alone, no Strings at all
+ *
+ * Both read the same browser-like request from an endless stream, as if a
+ * client kept sending it on one connection. Run with -prof gc to compare
+ * the bytes allocated per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+    static final String REQUEST =
+        "GET /css/style.css HTTP/1.1\r\n" +
+        "Host: localhost:5555\r\n" +
+        "Connection: keep-alive\r\n" +
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n" +
+        "Accept: text/css,*/*;q=0.1\r\n" +
+        "Sec-Fetch-Site: same-origin\r\n" +
+        "Sec-Fetch-Mode: no-cors\r\n" +
+        "Sec-Fetch-Dest: style\r\n" +
+        "Referer: http://localhost:5555/\r\n" +
+        "Accept-Encoding: gzip, deflate, br\r\n" +
+        "Accept-Language: en-US,en;q=0.9\r\n" +
+        "\r\n";
+
+    private static final MethodHandle NEW_PARSER = ServerClasses.findConstructor("RequestParser",
+        MethodType.methodType(void.class, int.class));
+    private static final MethodHandle READ_REQUEST = ServerClasses.findVirtual("RequestParser", "readRequest",
+        MethodType.methodType(boolean.class, InputStream.class));
+    private static final MethodHandle TARGET = ServerClasses.findVirtual("RequestParser", "target",
+        MethodType.methodType(String.class));
+    private static final MethodHandle HEADERS = ServerClasses.findVirtual("RequestParser", "headers",
+        MethodType.methodType(ServerClasses.serverClass("RequestHeaders")))
+        .asType(MethodType.methodType(Object.class, Object.class));
+    private static final MethodHandle HAS_TOKEN = ServerClasses.findVirtual("RequestHeaders", "hasToken",
+        MethodType.methodType(boolean.class, ServerClasses.serverClass("HeaderName"), String.class))
+        .asType(MethodType.methodType(boolean.class, Object.class, Object.class, String.class));
+    private static final MethodHandle GET = ServerClasses.findVirtual("RequestHeaders", "get",
+        MethodType.methodType(String.class, ServerClasses.serverClass("HeaderName")))
+        .asType(MethodType.methodType(String.class, Object.class, Object.class));
+
+    private static final Object CONNECTION = ServerClasses.enumConstant("HeaderName", "CONNECTION");
+
+    private BufferedReader reader;
+    private InputStream parserInput;
+    private Object parser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        byte[] request = REQUEST.getBytes(StandardCharsets.US_ASCII);
+        reader = new BufferedReader(new InputStreamReader(new RepeatingInputStream(request)));
+        parserInput = new RepeatingInputStream(request);
+        parser = (Object) NEW_PARSER.invokeExact(8192);
+    }
+
+    @Benchmark
+    public void bufferedReader(Blackhole blackhole) throws IOException {
+        String requestLine = reader.readLine();
+        StringTokenizer tokens = new StringTokenizer(requestLine);
+        blackhole.consume(tokens.nextToken());
+        blackhole.consume(tokens.nextToken());
+        blackhole.consume(tokens.nextToken());
+
+        String connectionHeader = null;
+        String headerLine;
+        while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
+            int colon = headerLine.indexOf(':');
+            if (colon > 0 && headerLine.substring(0, colon).trim().equalsIgnoreCase("Connection")) {
+                connectionHeader = headerLine.substring(colon + 1).trim();
+            }
+        }
+        blackhole.consume(connectionHeader);
+    }
+
+    @Benchmark
+    public void requestParser(Blackhole blackhole) throws Throwable {
+        blackhole.consume((boolean) READ_REQUEST.invokeExact(parser, parserInput));
+        blackhole.consume((String) TARGET.invokeExact(parser));
+        Object headers = (Object) HEADERS.invokeExact(parser);
+        blackhole.consume((boolean) HAS_TOKEN.invokeExact(headers, CONNECTION, "close"));
+    }
+
+    @Benchmark
+    public void headerValue(Blackhole blackhole) throws Throwable {
+        blackhole.consume((boolean) READ_REQUEST.invokeExact(parser, parserInput));
+        blackhole.consume((String) TARGET.invokeExact(parser));
+        Object headers = (Object) HEADERS.invokeExact(parser);
+        blackhole.consume((String) GET.invokeExact(headers, CONNECTION));
+    }
+
+    @Benchmark
+    public boolean parseOnly() throws Throwable {
+        return (boolean) READ_REQUEST.invokeExact(parser, parserInput);
+    }
+
+    /**
+     * Returns the same bytes over and over, like a client that keeps sending
+     * one request on a keep-alive connection. Each read() returns at most the
+     * rest of the current copy, the way data trickles in from a socket.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            byte b = data[position];
+            position = (position + 1) % data.length;
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            int count = Math.min(length, data.length - position);
+            System.arraycopy(data, position, target, offset, count);
+            position = (position + count) % data.length;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of sending one complete 200 response for a www/ file through
+ * ResponseWriter: the header block, the body, then flush(). This is the path
+ * that replaced HttpRequest.sendFileBytes().
+ *
+ * Bodies come from one of two sources:
+ * - memory: the cached body array, as for every file the content cache holds
+ * - disk:   ResponseWriter.writeFile(), as for files too large to cache
+ *
+ * and go to one of three socket-like sinks:
+ * - channel: a loopback connection opened with SocketChannel, so header and
+ *            body leave in one gathering write
+ * - stream:  a loopback connection opened with plain java.net.Socket, which
+ *            has no channel, so ResponseWriter falls back to stream writes
+ * - discard: a Socket whose output stream throws the bytes away, leaving
+ *            only the cost of ResponseWriter itself
+ *
+ * The far end of both loopback connections is drained by a background thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseSendBenchmark {
+    private static final MethodHandle NEW_RESPONSE_WRITER = ServerClasses.findConstructor("ResponseWriter",
+        MethodType.methodType(void.class, Socket.class));
+    private static final MethodHandle WRITE = ServerClasses.findVirtual("ResponseWriter", "write",
+        MethodType.methodType(void.class, byte[].class));
+    private static final MethodHandle WRITE_FILE = ServerClasses.findVirtual("ResponseWriter", "writeFile",
+        MethodType.methodType(void.class, Path.class, long.class, long.class));
+    private static final MethodHandle FLUSH = ServerClasses.findVirtual("ResponseWriter", "flush",
+        MethodType.methodType(void.class));
+    private static final MethodHandle GET_CONTENT_TYPE = ServerClasses.findStatic("HttpRequest", "getContentType",
+        MethodType.methodType(String.class, String.class));
+
+    @Param({"index.html", "css/style.css", "js/main.js", "pages/examples.html"})
+    public String file;
+
+    @Param({"channel", "stream", "discard"})
+    public String sink;
+
+    private Path path;
+    private byte[] body;
+    private byte[] headers;
+
+    private Closeable[] resources = new Closeable[0];
+    private Object responseWriter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        path = WwwFixtures.file(file);
+        body = Files.readAllBytes(path);
+        String contentType = (String) GET_CONTENT_TYPE.invokeExact(path.getFileName().toString());
+        headers = ("HTTP/1.1 200 OK\r\n" +
+            "Content-Type: " + contentType + "\r\n" +
+            "Content-Length: " + body.length + "\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        Socket socket;
+        switch (sink) {
+            case "channel": {
+                ServerSocketChannel listener = ServerSocketChannel.open()
+                    .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel receiver = SocketChannel.open(listener.getLocalAddress());
+                SocketChannel sender = listener.accept();
+                drain(Channels.newInputStream(receiver));
+                socket = sender.socket();
+                resources = new Closeable[] { sender, receiver, listener };
+                break;
+            }
+            case "stream": {
+                ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket sender = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+                Socket receiver = listener.accept();
+                drain(receiver.getInputStream());
+                socket = sender;
+                resources = new Closeable[] { sender, receiver, listener };
+                break;
+            }
+            case "discard":
+                socket = new Socket() {
+                    @Override
+                    public OutputStream getOutputStream() {
+                        return OutputStream.nullOutputStream();
+                    }
+                };
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sink " + sink);
+        }
+        responseWriter = (Object) NEW_RESPONSE_WRITER.invokeExact(socket);
+    }
+
+    /**
+     * Read and throw away everything that arrives, so the sender never
+     * waits for a full socket buffer
+     */
+    private static void drain(InputStream in) {
+        Thread drain = new Thread(() -> {
+            byte[] buffer = new byte[1 << 20];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Closed at tear down
+            }
+        }, "drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Closeable resource : resources) {
+            resource.close();
+        }
+    }
+
+    @Benchmark
+    public void memory() throws Throwable {
+        WRITE.invokeExact(responseWriter, headers);
+        WRITE.invokeExact(responseWriter, body);
+        FLUSH.invokeExact(responseWriter);
+    }
+
+    @Benchmark
+    public void disk() throws Throwable {
+        WRITE.invokeExact(responseWriter, headers);
+        WRITE_FILE.invokeExact(responseWriter, path, 0L, (long) body.length);
+        FLUSH.invokeExact(responseWriter);
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.lang.invoke.*;
+
+/**
+ * Access to the server classes from benchmark code.
+ *
+ * The server lives in the unnamed (default) package, which code in a named
+ * package cannot import, and JMH refuses benchmarks in the unnamed package.
+ * Benchmarks therefore reach server methods through method handles. A handle
+ * kept in a static final field is a constant to the JIT compiler, so calling
+ * it costs the same as a direct call once the benchmark is warmed up.
+ */
+final class ServerClasses {
+    private ServerClasses() {
+    }
+
+    /**
+     * A handle to a (possibly package-private) static method of a server class
+     */
+    static MethodHandle findStatic(String className, String methodName, MethodType type) {
+        try {
+            Class<?> serverClass = Class.forName(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(serverClass, MethodHandles.lookup());
+            return lookup.findStatic(serverClass, methodName, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + methodName + type, e);
+        }
+    }
+
+    /**
+     * A server class, for building method types that mention it
+     */
+    static Class<?> serverClass(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot find " + className, e);
+        }
+    }
+
+    /**
+     * A constant of a server enum
+     */
+    static Object enumConstant(String className, String constantName) {
+        for (Object constant : serverClass(className).getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(constantName)) {
+                return constant;
+            }
+        }
+        throw new IllegalStateException("Cannot find " + className + "." + constantName);
+    }
+
+    /**
+     * A handle to a constructor of a server class, typed to return Object
+     * (the class itself cannot be named here)
+     */
+    static MethodHandle findConstructor(String className, MethodType type) {
+        try {
+            Class<?> serverClass = Class.forName(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(serverClass, MethodHandles.lookup());
+            MethodHandle constructor = lookup.findConstructor(serverClass, type);
+            return constructor.asType(constructor.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find constructor " + className + type, e);
+        }
+    }
+
+    /**
+     * A handle to an instance method of a server class. The receiver is
+     * typed as Object, so invokeExact() works with the objects returned by
+     * findConstructor() handles.
+     */
+    static MethodHandle findVirtual(String className, String methodName, MethodType type) {
+        try {
+            Class<?> serverClass = Class.forName(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(serverClass, MethodHandles.lookup());
+            MethodHandle method = lookup.findVirtual(serverClass, methodName, type);
+            return method.asType(method.type().changeParameterType(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + methodName + type, e);
+        }
+    }
+}
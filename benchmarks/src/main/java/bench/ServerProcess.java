@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Runs the web server in a child JVM for end-to-end benchmarks.
+ *
+ * The child uses the benchmark's own class path (which contains the server
+ * classes) and runs in the project directory so that ./www resolves.
+ * Set -Dwebserver.home to point at the project when running from elsewhere.
+ */
+final class ServerProcess {
+    private final Process process;
+    private final int port;
+
+    private ServerProcess(Process process, int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    /**
+     * Start "java WebServer <free port> options..." and wait until it accepts connections
+     */
+    static ServerProcess start(String... options) throws IOException, InterruptedException {
+        int port = freePort();
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("WebServer");
+        command.add(String.valueOf(port));
+        command.addAll(Arrays.asList(options));
+
+        Process process = new ProcessBuilder(command)
+            .directory(projectHome())
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        ServerProcess server = new ServerProcess(process, port);
+        server.awaitListening();
+        return server;
+    }
+
+    int port() {
+        return port;
+    }
+
+    void stop() {
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitListening() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            if (!process.isAlive()) {
+                throw new IOException("Server exited with status " + process.exitValue());
+            }
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    stop();
+                    throw new IOException("Server did not start listening on port " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * The project directory: the one containing www/
+     */
+    static File projectHome() {
+        String home = System.getProperty("webserver.home");
+        if (home != null) {
+            return new File(home);
+        }
+        File dir = new File("").getAbsoluteFile();
+        while (dir != null && !new File(dir, "www").isDirectory()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) {
+            throw new IllegalStateException("Cannot find the www/ directory; set -Dwebserver.home");
+        }
+        return dir;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the platform-thread worker pool with virtual threads
+ * (--threads=platform vs --threads=virtual) when handlers block on slow clients.
+ *
+ * Each invocation starts {@code clients} downloads of a large file at once.
+ * Every client reads the response slowly through a small receive buffer, so
+ * the server's write() blocks until the client catches up. A platform worker
+ * stays pinned for the whole download, and the pool can only serve
+ * {@code workers} clients at a time; a virtual thread parks while its write
+ * is blocked, so all downloads progress together.
+ *
+ * The server runs as a separate process started with its real command line,
+ * so the benchmark exercises the actual accept loop. Virtual mode needs the
+ * benchmark to run on Java 21 or newer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThreadModeBenchmark {
+    private static final String FIXTURE = "bench-download.bin";
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100"})
+    public int clients;
+
+    @Param({"32"})
+    public int workers;
+
+    @Param({"1048576"})
+    public int fileSize;
+
+    // Client side: how much to read at a time, and how long to pause between reads
+    @Param({"4096"})
+    public int readSize;
+
+    @Param({"1"})
+    public int pauseMillis;
+
+    private Path fixture;
+    private ServerProcess server;
+    private ExecutorService clientThreads;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        fixture = ServerProcess.projectHome().toPath().resolve("www").resolve(FIXTURE);
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(fixture, content);
+
+        server = ServerProcess.start(
+            "--threads=" + threads,
+            "--workers=" + workers,
+            "--queue=" + clients,
+            "--max-connections=" + clients);
+        clientThreads = Executors.newFixedThreadPool(clients);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        clientThreads.shutdownNow();
+        server.stop();
+        Files.deleteIfExists(fixture);
+    }
+
+    /**
+     * Time for all slow clients to finish their download
+     */
+    @Benchmark
+    public long slowReaders() throws Exception {
+        List<Future<Long>> downloads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            downloads.add(clientThreads.submit(this::slowDownload));
+        }
+
+        long bytes = 0;
+        for (Future<Long> download : downloads) {
+            bytes += download.get();
+        }
+        return bytes;
+    }
+
+    private long slowDownload() throws Exception {
+        try (Socket socket = new Socket()) {
+            // A small receive window makes the server's writes block
+            socket.setReceiveBufferSize(readSize);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /" + FIXTURE + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            // "HTTP/1.x 200" is the first 12 bytes of a successful response
+            InputStream in = socket.getInputStream();
+            String status = new String(in.readNBytes(12), StandardCharsets.US_ASCII);
+            if (!status.startsWith("HTTP/1.") || !status.endsWith(" 200")) {
+                throw new IllegalStateException("Unexpected response: " + status);
+            }
+
+            byte[] buffer = new byte[readSize];
+            long total = status.length();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                Thread.sleep(pauseMillis);
+            }
+            if (total < fileSize) {
+                throw new IllegalStateException("Short download: " + total + " bytes");
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * The files shipped in www/, used as benchmark inputs.
+ *
+ * Real pages, styles and scripts give realistic sizes and file names, and
+ * since they are under version control every run measures the same bytes.
+ */
+final class WwwFixtures {
+    private WwwFixtures() {
+    }
+
+    /**
+     * A file below www/, like "css/style.css"
+     */
+    static Path file(String relative) {
+        Path file = ServerProcess.projectHome().toPath().resolve("www").resolve(relative);
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalStateException("Missing fixture " + file);
+        }
+        return file;
+    }
+
+    /**
+     * The names of all files below www/, in a fixed order
+     */
+    static List<String> fileNames() throws IOException {
+        Path root = ServerProcess.projectHome().toPath().resolve("www");
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                .map(file -> file.getFileName().toString())
+                .filter(name -> !name.startsWith("bench-"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+}